@@ -0,0 +1,161 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+/**
+ * Two colored image as a packed bit mask: one bit per pixel, in rows of long
+ * words with a boundary of 1, so bit x of row y is pixel (x - 1, y - 1). The
+ * edge node types of both layers are computed from the mask words by
+ * {@link MaskEdgeNodes}, without the indexed image and the layers of
+ * layering.
+ *
+ * @author sdejonge
+ */
+class BilevelImage {
+
+    final int width, height;
+    // layer 0 is the unset, layer 1 the set bits of the mask
+    final byte[][] palette;
+    // the colors of the palette are the exact colors of the image
+    final boolean exact;
+    // long words per row of the mask
+    private final int stride;
+    private final long[] mask;
+    // the bits of the pixel columns in every word of a row
+    private final long[] interior;
+
+    private BilevelImage(int width, int height, byte[][] palette,
+            boolean exact) {
+        this.width = width;
+        this.height = height;
+        this.palette = palette;
+        this.exact = exact;
+        stride = (width + 2 + 63) >>> 6;
+        mask = new long[(height + 2) * stride];
+        interior = new long[stride];
+        for (int x = 1; x <= width; x++) {
+            interior[x >>> 6] |= 1L << (x & 63);
+        }
+    }
+
+    /**
+     * The bit mask of an image in bilevel mode. With a bilevelThreshold the
+     * pixels darker than the threshold are set, otherwise the image must
+     * have no more than two colors, and the pixels of the second color are
+     * set.
+     *
+     * @param imgd
+     * @param options
+     * @return the mask, or null if the image is not bilevel
+     */
+    static BilevelImage of(ImageData imgd, Options options) {
+        if (options.bilevelThreshold() >= 0) {
+            return threshold(imgd, options.bilevelThreshold());
+        }
+        if (options.numberOfColors() < 2) {
+            return null;
+        }
+        ColorHistogram histogram = ColorHistogram.of(imgd, 2);
+        if (histogram == null) {
+            return null;
+        }
+
+        byte[][] palette = new byte[histogram.size][];
+        for (int k = 0; k < histogram.size; k++) {
+            palette[k] = toBytes(histogram.colors[k]);
+        }
+        BilevelImage bilevel = new BilevelImage(imgd.width, imgd.height,
+                palette, true);
+        if (histogram.size == 2) {
+            int set = histogram.colors[1];
+            for (int j = 0; j < imgd.height; j++) {
+                int offset = j * imgd.width;
+                for (int i = 0; i < imgd.width; i++) {
+                    if (imgd.argb(offset + i) == set) {
+                        bilevel.set(i, j);
+                    }
+                }
+            }
+        }
+        return bilevel;
+    }
+
+    /**
+     * Splitting an image by luminance, over a white background for
+     * transparent pixels. The palette colors are the mean colors of the
+     * two layers, white and black for an empty layer.
+     *
+     * @param imgd
+     * @param threshold
+     * @return
+     */
+    private static BilevelImage threshold(ImageData imgd, int threshold) {
+        byte[][] palette = new byte[2][];
+        BilevelImage bilevel = new BilevelImage(imgd.width, imgd.height,
+                palette, false);
+        // sums[k] = {sum R, sum G, sum B, sum A, pixel count}
+        long[][] sums = new long[2][5];
+        for (int j = 0; j < imgd.height; j++) {
+            int offset = j * imgd.width;
+            for (int i = 0; i < imgd.width; i++) {
+                int pixel = imgd.argb(offset + i);
+                int r = (pixel >>> 16) & 0xFF;
+                int g = (pixel >>> 8) & 0xFF;
+                int b = pixel & 0xFF;
+                int a = pixel >>> 24;
+                int luminance = ((r * 77) + (g * 150) + (b * 29)) >>> 8;
+                luminance = ((luminance * a) + (255 * (255 - a))) / 255;
+                int k = luminance < threshold ? 1 : 0;
+                if (k == 1) {
+                    bilevel.set(i, j);
+                }
+                sums[k][0] += r;
+                sums[k][1] += g;
+                sums[k][2] += b;
+                sums[k][3] += a;
+                sums[k][4]++;
+            }
+        }
+
+        for (int k = 0; k < 2; k++) {
+            long n = sums[k][4];
+            palette[k] = n == 0 ? toBytes(k == 0 ? 0xFFFFFFFF : 0xFF000000)
+                    : toBytes((int) (((sums[k][3] / n) << 24)
+                    | ((sums[k][0] / n) << 16) | ((sums[k][1] / n) << 8)
+                    | (sums[k][2] / n)));
+        }
+        return bilevel;
+    }
+
+    private static byte[] toBytes(int color) {
+        return new byte[]{(byte) (-128 + ((color >>> 16) & 0xFF)),
+                (byte) (-128 + ((color >>> 8) & 0xFF)),
+                (byte) (-128 + (color & 0xFF)),
+                (byte) (-128 + (color >>> 24))};
+    }
+
+    private void set(int i, int j) {
+        mask[((j + 1) * stride) + ((i + 1) >>> 6)] |= 1L << ((i + 1) & 63);
+    }
+
+    /**
+     * The edge nodes of a layer, each layer keeps its own record of the
+     * walked nodes, so it can only be scanned once
+     *
+     * @param k palette index
+     * @return
+     */
+    EdgeNodes layer(int k) {
+        if (k != 0) {
+            return new MaskEdgeNodes(mask, stride, width, height);
+        }
+        long[] unset = new long[mask.length];
+        for (int y = 1; y <= height; y++) {
+            for (int w = 0; w < stride; w++) {
+                unset[(y * stride) + w] = interior[w]
+                        & ~mask[(y * stride) + w];
+            }
+        }
+        return new MaskEdgeNodes(unset, stride, width, height);
+    }
+}
@@ -0,0 +1,22 @@
+package jankovicsandras.imagetracer;
+
+/**
+ * The kernels of the selective blur, see {@link SelectiveBlur}
+ *
+ * @author sdejonge
+ */
+public enum BlurMode {
+
+    /**
+     * The Gaussian kernels of the gks table, the radius is limited to 5 and
+     * the cost grows with the radius
+     */
+    GAUSSIAN,
+
+    /**
+     * Three running sum box filters in each direction, close to a Gaussian
+     * with a sigma of 0.75 * radius. The cost per pixel does not depend on
+     * the radius, and the radius is not limited.
+     */
+    BOX
+}
@@ -0,0 +1,80 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+/**
+ * Histogram of the unique packed ARGB values of an image, in an open
+ * addressing hash table. The colors are kept in order of their first
+ * occurrence. Counting stops as soon as there are more colors than the
+ * limit.
+ *
+ * @author sdejonge
+ */
+public class ColorHistogram {
+
+    // unique colors and their pixel counts, size entries are used
+    final int[] colors;
+    final int[] counts;
+    int size;
+    // entry index + 1 of the color in a slot, 0 for empty slots
+    private final int[] slots;
+    private final int shift;
+
+    private ColorHistogram(int maxColors) {
+        int bits = 32 - Integer.numberOfLeadingZeros(
+                Math.max(2, maxColors * 2) - 1);
+        slots = new int[1 << bits];
+        shift = 32 - bits;
+        colors = new int[maxColors];
+        counts = new int[maxColors];
+    }
+
+    /**
+     * Counting the colors of an image
+     *
+     * @param imgd
+     * @param maxColors
+     * @return the histogram, or null if the image has more than maxColors
+     * unique colors
+     */
+    public static ColorHistogram of(ImageData imgd, int maxColors) {
+        ColorHistogram histogram = new ColorHistogram(maxColors);
+        int length = imgd.width * imgd.height;
+        for (int i = 0; i < length; i++) {
+            int argb = imgd.argb(i);
+            int slot = histogram.slot(argb);
+            int entry = histogram.slots[slot] - 1;
+            if (entry < 0) {
+                if (histogram.size == maxColors) {
+                    return null;
+                }
+                entry = histogram.size++;
+                histogram.slots[slot] = entry + 1;
+                histogram.colors[entry] = argb;
+            }
+            histogram.counts[entry]++;
+        }
+        return histogram;
+    }
+
+    /**
+     * The entry index of a color, or -1 if it is not in the histogram
+     *
+     * @param argb
+     * @return
+     */
+    int indexOf(int argb) {
+        return slots[slot(argb)] - 1;
+    }
+
+    // linear probing from the hashed slot to the slot of the color or the
+    // first empty slot
+    private int slot(int argb) {
+        int mask = slots.length - 1;
+        int slot = (argb * 0x9E3779B9) >>> shift;
+        while ((slots[slot] != 0) && (colors[slots[slot] - 1] != argb)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,320 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * One clustering pass of colorquantization over a band of rows: every pixel
+ * is assigned to the closest palette color in the indexed image, optionally
+ * looked up in a nearest color cache first, and the colors and the bounding
+ * boxes of the colors are summed in a private accumulator. Bands are split
+ * and run with fork/join, the accumulators of the halves are merged when
+ * they are joined. Every pixel is written by exactly one band and the sums
+ * are exact, so the result is the same as with a single thread.
+ *
+ * @author sdejonge
+ */
+class ColorQuantizationTask
+        extends RecursiveTask<ColorQuantizationTask.Accumulator> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ImageData imgd;
+    // unsigned palette: pal[k] = {R, G, B, A}
+    private final int[][] pal;
+    private final IndexedImage indexed;
+    private final int rowStart, rowEnd, band;
+    // entries of the nearest color cache of a band, 0 for no cache
+    private final int cacheSize;
+    // Vector API kernels, null for the scalar loop
+    private final PixelKernels kernels;
+    // summing the distances of the pixels to their palette colors
+    private final boolean measure;
+
+    /**
+     * @param imgd
+     * @param pal       unsigned palette colors
+     * @param indexed   indexed image of the same size as imgd
+     * @param band      bands with more rows than this are split
+     * @param cacheSize entries of the nearest color cache of every band, 0
+     *                  for no cache
+     * @param kernels   Vector API kernels, null for the scalar loop; not used
+     *                  with a cache
+     * @param measure   summing the distances of the pixels to their palette
+     *                  colors
+     */
+    ColorQuantizationTask(ImageData imgd, int[][] pal, IndexedImage indexed,
+            int band, int cacheSize, PixelKernels kernels, boolean measure) {
+        this.imgd = imgd;
+        this.pal = pal;
+        this.indexed = indexed;
+        this.rowStart = 0;
+        this.rowEnd = imgd.height;
+        this.band = band;
+        this.cacheSize = cacheSize;
+        this.kernels = cacheSize > 0 ? null : kernels;
+        this.measure = measure;
+    }
+
+    private ColorQuantizationTask(ColorQuantizationTask parent, int rowStart,
+            int rowEnd) {
+        this.imgd = parent.imgd;
+        this.pal = parent.pal;
+        this.indexed = parent.indexed;
+        this.rowStart = rowStart;
+        this.rowEnd = rowEnd;
+        this.band = parent.band;
+        this.cacheSize = parent.cacheSize;
+        this.kernels = parent.kernels;
+        this.measure = parent.measure;
+    }
+
+    /**
+     * Sums of one pass
+     */
+    static class Accumulator {
+        // paletteacc[k] = {sum R, sum G, sum B, sum A, pixel count}
+        final long[][] paletteacc;
+        long cacheHits, cacheMisses;
+        // pixels that got an other palette color than in the previous pass
+        long reassigned;
+        // sum of the distances of the pixels to their palette colors, if
+        // they are measured
+        long distance;
+        // bounds[k] = {min x, min y, max x, max y} of the pixels of every
+        // palette color, in pixels
+        final int[][] bounds;
+
+        Accumulator(int paletteLength) {
+            paletteacc = new long[paletteLength][5];
+            bounds = new int[paletteLength][];
+            for (int k = 0; k < paletteLength; k++) {
+                bounds[k] = new int[]{Integer.MAX_VALUE, Integer.MAX_VALUE,
+                        -1, -1};
+            }
+        }
+
+        void include(int ci, int x, int y) {
+            int[] box = bounds[ci];
+            if (x < box[0]) {
+                box[0] = x;
+            }
+            if (y < box[1]) {
+                box[1] = y;
+            }
+            if (x > box[2]) {
+                box[2] = x;
+            }
+            if (y > box[3]) {
+                box[3] = y;
+            }
+        }
+
+        void add(Accumulator other) {
+            for (int k = 0; k < paletteacc.length; k++) {
+                for (int c = 0; c < 5; c++) {
+                    paletteacc[k][c] += other.paletteacc[k][c];
+                }
+            }
+            for (int k = 0; k < bounds.length; k++) {
+                bounds[k][0] = Math.min(bounds[k][0], other.bounds[k][0]);
+                bounds[k][1] = Math.min(bounds[k][1], other.bounds[k][1]);
+                bounds[k][2] = Math.max(bounds[k][2], other.bounds[k][2]);
+                bounds[k][3] = Math.max(bounds[k][3], other.bounds[k][3]);
+            }
+            cacheHits += other.cacheHits;
+            cacheMisses += other.cacheMisses;
+            reassigned += other.reassigned;
+            distance += other.distance;
+        }
+    }
+
+    /**
+     * Rows per band, so that there are a few bands for every thread, but
+     * the bands are not too small
+     *
+     * @param imgd
+     * @param parallelism
+     * @return
+     */
+    static int band(ImageData imgd, int parallelism) {
+        int minRows = (16384 / Math.max(1, imgd.width)) + 1;
+        int rows = (imgd.height + (parallelism * 4) - 1) / (parallelism * 4);
+        return Math.max(minRows, rows);
+    }
+
+    @Override
+    protected Accumulator compute() {
+        if ((rowEnd - rowStart) > band) {
+            int mid = (rowStart + rowEnd) >>> 1;
+            ColorQuantizationTask top = new ColorQuantizationTask(this,
+                    rowStart, mid);
+            ColorQuantizationTask bottom = new ColorQuantizationTask(this,
+                    mid, rowEnd);
+            top.fork();
+            Accumulator acc = bottom.compute();
+            acc.add(top.join());
+            return acc;
+        }
+        return assign();
+    }
+
+    private Accumulator assign() {
+        if (kernels != null) {
+            return assignRows();
+        }
+        int idx, ci, pixel;
+        Accumulator acc = new Accumulator(pal.length);
+        long[][] paletteacc = acc.paletteacc;
+        NearestColorCache cache = cacheSize > 0
+                ? new NearestColorCache(cacheSize) : null;
+
+        // loop through all pixels of the band
+        int stride = indexed.stride();
+        for (int j = rowStart; j < rowEnd; j++) {
+            for (int i = 0; i < imgd.width; i++) {
+
+                idx = (j * imgd.width) + i;
+                pixel = imgd.argb(idx);
+
+                if (cache == null) {
+                    ci = nearest(pal, pixel);
+                } else {
+                    ci = cache.get(pixel);
+                    if (ci < 0) {
+                        ci = nearest(pal, pixel);
+                        cache.put(pixel, ci);
+                    }
+                }
+
+                // add to palettacc
+                paletteacc[ci][0] += (pixel >>> 16) & 0xFF;
+                paletteacc[ci][1] += (pixel >>> 8) & 0xFF;
+                paletteacc[ci][2] += pixel & 0xFF;
+                paletteacc[ci][3] += pixel >>> 24;
+                paletteacc[ci][4]++;
+                acc.include(ci, i, j);
+                if (measure) {
+                    acc.distance += distance(pal[ci], pixel);
+                }
+
+                int target = ((j + 1) * stride) + i + 1;
+                if (indexed.get(target) != ci) {
+                    acc.reassigned++;
+                    indexed.set(target, ci);
+                }
+            }
+        }
+
+        if (cache != null) {
+            acc.cacheHits = cache.hits;
+            acc.cacheMisses = cache.misses;
+        }
+        return acc;
+    }
+
+    /**
+     * The same pass with the closest colors of a row found by the kernels
+     *
+     * @return
+     */
+    private Accumulator assignRows() {
+        int ci, pixel;
+        Accumulator acc = new Accumulator(pal.length);
+        long[][] paletteacc = acc.paletteacc;
+        int[] row = imgd.pixels != null ? null : new int[imgd.width];
+        int[] indexes = new int[imgd.width];
+        int stride = indexed.stride();
+
+        for (int j = rowStart; j < rowEnd; j++) {
+            int offset = j * imgd.width;
+            if (row == null) {
+                kernels.nearest(imgd.pixels, offset, imgd.width, pal, indexes);
+            } else {
+                // mapped rasters are unpacked row by row
+                for (int i = 0; i < imgd.width; i++) {
+                    row[i] = imgd.argb(offset + i);
+                }
+                kernels.nearest(row, 0, imgd.width, pal, indexes);
+            }
+
+            for (int i = 0; i < imgd.width; i++) {
+                pixel = row == null ? imgd.pixels[offset + i] : row[i];
+                ci = indexes[i];
+
+                // add to palettacc
+                paletteacc[ci][0] += (pixel >>> 16) & 0xFF;
+                paletteacc[ci][1] += (pixel >>> 8) & 0xFF;
+                paletteacc[ci][2] += pixel & 0xFF;
+                paletteacc[ci][3] += pixel >>> 24;
+                paletteacc[ci][4]++;
+                acc.include(ci, i, j);
+                if (measure) {
+                    acc.distance += distance(pal[ci], pixel);
+                }
+
+                int target = ((j + 1) * stride) + i + 1;
+                if (indexed.get(target) != ci) {
+                    acc.reassigned++;
+                    indexed.set(target, ci);
+                }
+            }
+        }
+        return acc;
+    }
+
+    /**
+     * The rectilinear color distance of nearest() between a palette color
+     * and a pixel
+     *
+     * @param color unsigned palette color
+     * @param pixel
+     * @return
+     */
+    static int distance(int[] color, int pixel) {
+        return Math.abs(color[0] - ((pixel >>> 16) & 0xFF))
+                + Math.abs(color[1] - ((pixel >>> 8) & 0xFF))
+                + Math.abs(color[2] - (pixel & 0xFF))
+                + (Math.abs(color[3] - (pixel >>> 24)) * 4);
+    }
+
+    /**
+     * Finding the closest color from the palette by measuring (rectilinear)
+     * color distance between this pixel and all palette colors
+     *
+     * @param pal   unsigned palette colors
+     * @param pixel
+     * @return
+     */
+    static int nearest(int[][] pal, int pixel) {
+        int cd, cdl, ci, c1, c2, c3, c4;
+        int r = (pixel >>> 16) & 0xFF;
+        int g = (pixel >>> 8) & 0xFF;
+        int b = pixel & 0xFF;
+        int a = pixel >>> 24;
+
+        cdl = 256 + 256 + 256 + 256;
+        ci = 0;
+        for (int k = 0; k < pal.length; k++) {
+
+            // In my experience, https://en.wikipedia.org/wiki/Rectilinear_distance
+            // works better than https://en.wikipedia.org/wiki/Euclidean_distance
+            c1 = Math.abs(pal[k][0] - r);
+            c2 = Math.abs(pal[k][1] - g);
+            c3 = Math.abs(pal[k][2] - b);
+            c4 = Math.abs(pal[k][3] - a);
+            // weighted alpha seems to help images with transparency
+            cd = c1 + c2 + c3 + (c4 * 4);
+
+            // Remember this color if this is the closest yet
+            if (cd < cdl) {
+                cdl = cd;
+                ci = k;
+            }
+
+        }
+        return ci;
+    }
+}
@@ -0,0 +1,126 @@
+package jankovicsandras.imagetracer;
+
+/**
+ * Grid of edge node types of one layer, walked and cleared by pathscan. The
+ * grid has a boundary of 1, like the layers of layering: node (x, y) is the
+ * bottom right corner of pixel (x - 1, y - 1).
+ *
+ * @author sdejonge
+ */
+interface EdgeNodes {
+
+    int width();
+
+    int height();
+
+    /**
+     * The edge node type (0 - 15) of a node
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    int get(int x, int y);
+
+    /**
+     * Replacing the type of a node, 0 once it is walked
+     *
+     * @param x
+     * @param y
+     * @param type
+     */
+    void set(int x, int y, int type);
+
+    /**
+     * The first node at or after x in row y that starts a path, so neither
+     * of type 0 nor 15
+     *
+     * @param x
+     * @param y
+     * @return its x, or width() if there is none
+     */
+    int nextEdge(int x, int y);
+
+    /**
+     * Edge nodes in an int[][] layer of layering
+     *
+     * @param layer
+     * @return
+     */
+    static EdgeNodes of(int[][] layer) {
+        return new EdgeNodes() {
+
+            @Override
+            public int width() {
+                return layer[0].length;
+            }
+
+            @Override
+            public int height() {
+                return layer.length;
+            }
+
+            @Override
+            public int get(int x, int y) {
+                return layer[y][x];
+            }
+
+            @Override
+            public void set(int x, int y, int type) {
+                layer[y][x] = type;
+            }
+
+            @Override
+            public int nextEdge(int x, int y) {
+                int[] row = layer[y];
+                while ((x < row.length) && ((row[x] == 0) || (row[x] == 15))) {
+                    x++;
+                }
+                return x;
+            }
+        };
+    }
+
+    /**
+     * Edge nodes in a byte[] of rows of width nodes
+     *
+     * @param nodes
+     * @param width
+     * @param height
+     * @return
+     */
+    static EdgeNodes of(byte[] nodes, int width, int height) {
+        return new EdgeNodes() {
+
+            @Override
+            public int width() {
+                return width;
+            }
+
+            @Override
+            public int height() {
+                return height;
+            }
+
+            @Override
+            public int get(int x, int y) {
+                return nodes[(y * width) + x];
+            }
+
+            @Override
+            public void set(int x, int y, int type) {
+                nodes[(y * width) + x] = (byte) type;
+            }
+
+            @Override
+            public int nextEdge(int x, int y) {
+                int row = y * width;
+                while ((x < width) && ((nodes[row + x] == 0)
+                        || (nodes[row + x] == 15))) {
+                    x++;
+                }
+                return x;
+            }
+        };
+    }
+}
@@ -0,0 +1,256 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Decoding images straight into the tracer's pixel buffer with an
+ * {@link ImageReader}, optionally restricted to a source region and
+ * subsampled, so that oversized inputs are never fully inflated on the heap.
+ *
+ * @author sdejonge
+ */
+public class ImageLoader {
+
+    /**
+     * Loading ImageData from a file with the region, subsampling and pixel
+     * cap in options. PAM, PPM, PGM and raw RGBA files are mapped instead.
+     *
+     * @param file
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public static ImageData loadImageData(File file, Options options)
+            throws IOException {
+        if (MappedRaster.isRaster(file)) {
+            if ((options.region() != null) || (options.subsampling() > 1)
+                    || (options.maxPixels() > 0)) {
+                throw new IllegalArgumentException("region, subsampling and "
+                        + "maxpixels are not supported for mapped rasters");
+            }
+            return MappedRaster.map(file, options.rawWidth());
+        }
+        return loadImageData(file, options.region(), options.subsampling(),
+                options.maxPixels());
+    }
+
+    /**
+     * Loading ImageData from a file
+     *
+     * @param file
+     * @param region      source region to decode, null for the whole image
+     * @param subsampling keep every n-th column and row, 1 for all
+     * @param maxPixels   subsampling is raised until the decoded image has at
+     *                    most this many pixels, 0 for no limit
+     * @return
+     * @throws IOException
+     */
+    public static ImageData loadImageData(File file, Rectangle region,
+            int subsampling, long maxPixels) throws IOException {
+        return decode(file, region, subsampling, maxPixels);
+    }
+
+    /**
+     * Loading ImageData from an encoded image in a stream, like the bytes of
+     * a PNG, with the region, subsampling and pixel cap in options. The
+     * stream is not closed.
+     *
+     * @param stream
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public static ImageData loadImageData(InputStream stream, Options options)
+            throws IOException {
+        return decode(stream, options.region(), options.subsampling(),
+                options.maxPixels());
+    }
+
+    /**
+     * ImageData of a BufferedImage. The pixels of TYPE_INT_ARGB images are
+     * shared, not copied, the tracer does not modify them. Palette images
+     * keep their color indexes and colors.
+     *
+     * @param image
+     * @return
+     */
+    public static ImageData loadImageData(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (isIndexed(image.getColorModel(), image.getRaster())) {
+            IndexColorModel model = (IndexColorModel) image.getColorModel();
+            // the raster can hold indexes past the map size, their color
+            // is 0
+            int[] colors = new int[256];
+            model.getRGBs(colors);
+            byte[] indexes = new byte[width * height];
+            int[] row = new int[width];
+            Raster raster = image.getRaster();
+            for (int j = 0; j < height; j++) {
+                raster.getSamples(0, j, width, 1, 0, row);
+                for (int i = 0; i < width; i++) {
+                    indexes[(j * width) + i] = (byte) row[i];
+                }
+            }
+            return new ImageData(width, height, indexes, colors);
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if ((image.getType() == BufferedImage.TYPE_INT_ARGB)
+                && (image.getRaster().getParent() == null)
+                && (((DataBufferInt) buffer).getData().length
+                == (width * height))) {
+            return new ImageData(width, height,
+                    ((DataBufferInt) buffer).getData());
+        }
+        int[] pixels = new int[width * height];
+        for (int j = 0; j < height; j++) {
+            image.getRGB(0, j, width, 1, pixels, j * width, width);
+        }
+        return new ImageData(width, height, pixels);
+    }
+
+    /**
+     * Is this a palette image with at most 256 colors and 8 bit indexes
+     */
+    private static boolean isIndexed(ColorModel model,
+            Raster raster) {
+        return (model instanceof IndexColorModel)
+                && (((IndexColorModel) model).getMapSize() <= 256)
+                && (model.getPixelSize() <= 8)
+                && ((raster == null) || (raster.getNumBands() == 1));
+    }
+
+    /**
+     * An ImageInputStream of a file or a stream. Streams are cached in
+     * memory: ImageIO would cache them in a temporary file when its cache is
+     * enabled, which is the default.
+     *
+     * @param input File or InputStream
+     * @return the stream, or null if there is no ImageInputStream for input
+     * @throws IOException
+     */
+    static ImageInputStream openStream(Object input) throws IOException {
+        if (input instanceof InputStream) {
+            return new MemoryCacheImageInputStream((InputStream) input);
+        }
+        return ImageIO.createImageInputStream(input);
+    }
+
+    private static ImageData decode(Object input, Rectangle region,
+            int subsampling, long maxPixels) throws IOException {
+        try (ImageInputStream iis = openStream(input)) {
+            if (iis == null) {
+                throw new IOException("Can't open " + input);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + input);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return read(reader, region, subsampling, maxPixels);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageData read(ImageReader reader, Rectangle region,
+            int subsampling, long maxPixels) throws IOException {
+        Rectangle source = new Rectangle(0, 0, reader.getWidth(0),
+                reader.getHeight(0));
+        if (region != null) {
+            source = source.intersection(region);
+            if (source.isEmpty()) {
+                throw new IOException("Region " + region
+                        + " is outside of the image");
+            }
+        }
+
+        // Capping the decoded size by raising the subsampling
+        int step = Math.max(1, subsampling);
+        if (maxPixels > 0) {
+            while (decodedSize(source.width, step)
+                    * (long) decodedSize(source.height, step) > maxPixels) {
+                step++;
+            }
+        }
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(source);
+        param.setSourceSubsampling(step, step, 0, 0);
+
+        // Decoding straight into packed ARGB ints if the reader can do that,
+        // otherwise the decoded image is converted row by row. Palette
+        // images are decoded as they are, to keep the color indexes.
+        ImageTypeSpecifier raw = reader.getRawImageType(0);
+        ImageTypeSpecifier argb = argbType(reader);
+        if ((argb != null)
+                && ((raw == null) || !isIndexed(raw.getColorModel(), null))) {
+            param.setDestinationType(argb);
+        }
+        BufferedImage image = reader.read(0, param);
+
+        // The decoded RGB ints only need an opaque alpha
+        if ((image.getType() == BufferedImage.TYPE_INT_RGB)
+                && (image.getRaster().getParent() == null)) {
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer())
+                    .getData();
+            if (pixels.length == (image.getWidth() * image.getHeight())) {
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] |= 0xFF000000;
+                }
+                return new ImageData(image.getWidth(), image.getHeight(),
+                        pixels);
+            }
+        }
+        return loadImageData(image);
+    }
+
+    private static int decodedSize(int size, int step) {
+        return ((size - 1) / step) + 1;
+    }
+
+    /**
+     * The image type with packed, non premultiplied ARGB or RGB ints, if the
+     * reader offers it
+     *
+     * @param reader
+     * @return
+     * @throws IOException
+     */
+    private static ImageTypeSpecifier argbType(ImageReader reader)
+            throws IOException {
+        ImageTypeSpecifier rgb = null;
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            ImageTypeSpecifier type = types.next();
+            if (type.getBufferedImageType() == BufferedImage.TYPE_INT_ARGB) {
+                return type;
+            }
+            if (type.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+                rgb = type;
+            }
+        }
+        return rgb;
+    }
+}
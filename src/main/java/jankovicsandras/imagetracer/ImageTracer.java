@@ -3,21 +3,19 @@ package jankovicsandras.imagetracer;
 
 import com.beust.jcommander.JCommander;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
 
 public class ImageTracer {
 
     public static final String VersionNumber = "1.1.4";
+    private static final ImageTracerEngine ENGINE = new ImageTracerEngine();
     private Options options;
-    private BufferedImage image;
-    private byte[][] palette;
-    private int[] rawData;
     private ImageData imageData;
 
     /**
@@ -26,23 +24,8 @@ public class ImageTracer {
      * @param path
      */
     public ImageTracer(String path, Options options) throws Exception {
-        image = ImageIO.read(new File(path));
         this.options = options;
-
-        int width = image.getWidth();
-        int height = image.getHeight();
-        rawData = image.getRGB(0, 0, width, height, null, 0, width);
-        byte[] data = new byte[rawData.length * 4];
-        for (int i = 0; i < rawData.length; i++) {
-            data[(i * 4) + 3] = Utils.byteTrans((byte) (rawData[i] >>> 24));
-            data[i * 4] = Utils.byteTrans((byte) (rawData[i] >>> 16));
-            data[(i * 4) + 1] = Utils.byteTrans((byte) (rawData[i] >>> 8));
-            data[(i * 4) + 2] = Utils.byteTrans((byte) (rawData[i]));
-        }
-        imageData = new ImageData(width, height, data);
-
-        palette = Utils.getPalette(options, image, imageData,
-                options.isOldQuantizer());
+        imageData = ImageLoader.loadImageData(new File(path), options);
     }
 
     /**
@@ -53,36 +36,14 @@ public class ImageTracer {
      * @throws Exception
      */
     public String toSvg() throws Exception {
-        IndexedImage ii = trace();
-        return SVGUtils.getSvgString(trace(), options);
+        return ENGINE.toSvg(imageData, options);
     }
 
     /**
      * Tracing ImageData, then returning IndexedImage with tracedata in layers
      */
     public IndexedImage trace() {
-        // 1. Color quantization
-        IndexedImage indexedImage = VectorizingUtils.colorquantization(
-                imageData, palette, options);
-
-        // 2. Layer separation and edge detection
-        int[][][] rawlayers = VectorizingUtils.layering(indexedImage);
-
-        // 3. Batch pathscan
-        List<List<List<Integer[]>>> bps = VectorizingUtils
-                .batchpathscan(rawlayers, options.pathOmit());
-
-        // 4. Batch interpollation
-        List<List<List<Double[]>>> bis = VectorizingUtils
-                .batchinternodes(bps);
-
-        // 5. Batch tracing
-        indexedImage.traceData = VectorizingUtils.batchtracelayers(
-                bis, options.ltres(), options.qtres());
-
-        indexedImage.segments = VectorizingUtils.segments(indexedImage, options);
-
-        return indexedImage;
+        return ENGINE.trace(imageData, options);
     }
 
     public static void main(String[] args) {
@@ -102,8 +63,12 @@ public class ImageTracer {
 
         try {
             ImageTracer tracer = new ImageTracer(options.input(), options);
-            String svg = tracer.toSvg();
+            IndexedImage indexedImage = tracer.trace();
+            String svg = SVGUtils.getSvgString(indexedImage, options);
             Files.write(Paths.get(options.output()), svg.getBytes());
+            if (options.isStats()) {
+                System.err.println(indexedImage.stats);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -116,19 +81,225 @@ public class ImageTracer {
     public static class IndexedImage {
 
         public int width, height;
-        // array[x][y] of palette colors
-        public int[][] array;
+        // palette indexes of the pixels in rows of width + 2, with a
+        // boundary of 1 in every direction: bytes for palettes of up to 255
+        // colors, otherwise shorts. The boundary holds the largest value,
+        // see get(). Both are null for bilevel images.
+        public byte[] indexes;
+        public short[] wideIndexes;
         // array[palettelength][4] RGBA color palette
         public byte[][] palette;
         public List<List<List<Segment>>> traceData;
         public List<Segment> segments;
+        // counters of the color quantization
+        public QuantizationStats stats;
+        // pixel count and bounding box {min x, min y, max x, max y} in pixels
+        // of every palette color, recorded by the color quantization; null
+        // if they are not known
+        public long[] colorCounts;
+        public int[][] colorBounds;
 
-        public IndexedImage(int[][] array, byte[][] palette) {
-            this.array = array;
+        /**
+         * An indexed image with every pixel at palette index 0 and the
+         * boundary filled
+         *
+         * @param width
+         * @param height
+         * @param palette
+         */
+        public IndexedImage(int width, int height, byte[][] palette) {
+            this(width, height, null, null, palette);
+            int length = (width + 2) * (height + 2);
+            // the largest value is the boundary, so the indexes of a
+            // palette of 0xFF colors still fit in bytes
+            if (palette.length <= 0xFF) {
+                indexes = new byte[length];
+            } else if (palette.length <= 0xFFFF) {
+                wideIndexes = new short[length];
+            } else {
+                throw new IllegalArgumentException("Palettes of more than "
+                        + 0xFFFF + " colors are not supported, got "
+                        + palette.length);
+            }
+            int stride = width + 2;
+            for (int j = 0; j < (height + 2); j++) {
+                set(j * stride, -1);
+                set((j * stride) + width + 1, -1);
+            }
+            for (int i = 0; i < stride; i++) {
+                set(i, -1);
+                set(((height + 1) * stride) + i, -1);
+            }
+        }
+
+        /**
+         * An indexed image on existing index buffers, which are shared
+         *
+         * @param width
+         * @param height
+         * @param indexes
+         * @param wideIndexes
+         * @param palette
+         */
+        public IndexedImage(int width, int height, byte[] indexes,
+                short[] wideIndexes, byte[][] palette) {
+            this.width = width;
+            this.height = height;
+            this.indexes = indexes;
+            this.wideIndexes = wideIndexes;
             this.palette = palette;
-            width = array[0].length - 2;
+        }
+
+        /**
+         * An indexed image of an array[y][x] of palette indexes with a
+         * boundary of -1
+         *
+         * @param array
+         * @param palette
+         */
+        public IndexedImage(int[][] array, byte[][] palette) {
             // Color quantization adds +2 to the original width and height
-            height = array.length - 2;
+            this(array[0].length - 2, array.length - 2, palette);
+            for (int j = 1; j <= height; j++) {
+                for (int i = 1; i <= width; i++) {
+                    set((j * (width + 2)) + i, array[j][i]);
+                }
+            }
+        }
+
+        /**
+         * Starting a new record of the pixel counts and bounding boxes of
+         * the palette colors, see include()
+         */
+        public void resetColorBounds() {
+            colorCounts = new long[palette.length];
+            colorBounds = new int[palette.length][];
+            for (int k = 0; k < palette.length; k++) {
+                colorBounds[k] = new int[]{Integer.MAX_VALUE,
+                        Integer.MAX_VALUE, -1, -1};
+            }
+        }
+
+        /**
+         * Recording a pixel of a palette color in the pixel counts and
+         * bounding boxes
+         *
+         * @param index palette index
+         * @param x
+         * @param y
+         */
+        public void include(int index, int x, int y) {
+            colorCounts[index]++;
+            int[] box = colorBounds[index];
+            box[0] = Math.min(box[0], x);
+            box[1] = Math.min(box[1], y);
+            box[2] = Math.max(box[2], x);
+            box[3] = Math.max(box[3], y);
+        }
+
+        /**
+         * Distance of vertically neighbouring indexes
+         *
+         * @return
+         */
+        public int stride() {
+            return width + 2;
+        }
+
+        /**
+         * The palette index at an index of the padded rows, -1 on the
+         * boundary
+         *
+         * @param idx (y + 1) * stride() + x + 1 for pixel (x, y)
+         * @return
+         */
+        public int get(int idx) {
+            if (indexes != null) {
+                int index = indexes[idx] & 0xFF;
+                return index == 0xFF ? -1 : index;
+            }
+            int index = wideIndexes[idx] & 0xFFFF;
+            return index == 0xFFFF ? -1 : index;
+        }
+
+        /**
+         * Setting the palette index at an index of the padded rows, -1 for
+         * the boundary
+         *
+         * @param idx
+         * @param index
+         */
+        public void set(int idx, int index) {
+            if (indexes != null) {
+                indexes[idx] = (byte) index;
+            } else {
+                wideIndexes[idx] = (short) index;
+            }
+        }
+    }
+
+    /**
+     * Counters of the color quantization, summed over all cycles
+     */
+    public static class QuantizationStats {
+
+        // nearest color cache lookups, see Options.colorCacheSize()
+        public long cacheHits, cacheMisses;
+        // unique colors if the cycles ran over a histogram, otherwise 0
+        public int histogramColors;
+        // the unique colors are the palette, there was no clustering
+        public boolean exactPalette;
+        // the image was traced from a bit mask, see Options.isBilevel()
+        public boolean bilevel;
+        // clustering cycles that ran, see Options.convergenceShift() and
+        // Options.convergenceReassigned()
+        public int cycles;
+        // pixels that changed palette color in the last cycle
+        public long reassigned;
+        // sampling stride of the palette estimation, 1 without sampling
+        public int sampleStride = 1;
+        // mean color distance of the pixels to their palette colors, in the
+        // sample in the last cycle and in the full image in the final pass
+        public double sampleError, paletteError;
+
+        @Override
+        public String toString() {
+            if (bilevel) {
+                return "bilevel mask"
+                        + (exactPalette ? " of " + histogramColors + " colors"
+                        : ", split by luminance");
+            }
+            if (exactPalette) {
+                return "exact palette of " + histogramColors + " colors";
+            }
+            return "cycles: " + cycles + ", reassigned in the last cycle: "
+                    + reassigned + ", nearest color cache: " + cacheHits
+                    + " hits, "
+                    + cacheMisses + " misses, histogram colors: "
+                    + histogramColors
+                    + (sampleStride > 1 ? ", sample stride: " + sampleStride
+                    + ", sample error: " + sampleError + ", palette error: "
+                    + paletteError : "");
+        }
+    }
+
+    /**
+     * Container for the results of stages 1. - 4.: the color-indexed image
+     * and the interpolated paths of every layer. Fitting and rendering can be
+     * repeated on it with different options, see
+     * {@link ImageTracerEngine#fit(PreparedTrace, Options)}
+     */
+    public static class PreparedTrace {
+
+        public IndexedImage indexedImage;
+        // the internodes of every layer, with doubled coordinates and the
+        // direction to the next internode
+        public List<PackedPaths> internodes;
+
+        public PreparedTrace(IndexedImage indexedImage,
+                List<PackedPaths> internodes) {
+            this.indexedImage = indexedImage;
+            this.internodes = internodes;
         }
     }
 
@@ -138,13 +309,98 @@ public class ImageTracer {
     public static class ImageData {
 
         public int width, height;
-        // raw byte data: R G B A R G B A ...
-        public byte[] data;
+        // packed unsigned ARGB pixels in row-major order, null if the
+        // pixels are read from a raster
+        public int[] pixels;
+        // 8 bit samples in row-major order: gray, gray alpha, R G B or
+        // R G B A depending on channels, usually a mapped file. A raster of
+        // more than 2 GB is split in buffers of 1 << rasterShift pixels.
+        public ByteBuffer[] raster;
+        public int rasterShift;
+        public int channels;
+        // unsigned color indexes in row-major order and their ARGB colors,
+        // for palette images; there is a color for each of the 256 indexes,
+        // indexes past the palette are 0, like in an IndexColorModel
+        public byte[] indexes;
+        public int[] indexColors;
+
+        public ImageData(int width, int height, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        public ImageData(int width, int height, ByteBuffer raster,
+                int channels) {
+            this(width, height, new ByteBuffer[]{raster}, 31, channels);
+        }
 
-        public ImageData(int width, int height, byte[] data) {
+        /**
+         * ImageData of a raster in several buffers
+         *
+         * @param width
+         * @param height
+         * @param raster      buffer k holds the samples of pixel
+         *                    k << rasterShift and up
+         * @param rasterShift
+         * @param channels
+         */
+        public ImageData(int width, int height, ByteBuffer[] raster,
+                int rasterShift, int channels) {
             this.width = width;
             this.height = height;
-            this.data = data;
+            this.raster = raster;
+            this.rasterShift = rasterShift;
+            this.channels = channels;
+        }
+
+        public ImageData(int width, int height, byte[] indexes,
+                int[] indexColors) {
+            this.width = width;
+            this.height = height;
+            this.indexes = indexes;
+            this.indexColors = indexColors.length < 256
+                    ? Arrays.copyOf(indexColors, 256) : indexColors;
+        }
+
+        /**
+         * The packed ARGB value of a pixel
+         *
+         * @param index row-major pixel index
+         * @return
+         */
+        public int argb(int index) {
+            if (pixels != null) {
+                return pixels[index];
+            }
+            if (indexes != null) {
+                return indexColors[indexes[index] & 0xFF];
+            }
+            ByteBuffer raster = this.raster[index >>> rasterShift];
+            int offset = (index & ((int) ((1L << rasterShift) - 1)))
+                    * channels;
+            int r, g, b, a = 0xFF;
+            switch (channels) {
+                case 1:
+                    r = g = b = raster.get(offset) & 0xFF;
+                    break;
+                case 2:
+                    r = g = b = raster.get(offset) & 0xFF;
+                    a = raster.get(offset + 1) & 0xFF;
+                    break;
+                case 3:
+                    r = raster.get(offset) & 0xFF;
+                    g = raster.get(offset + 1) & 0xFF;
+                    b = raster.get(offset + 2) & 0xFF;
+                    break;
+                default:
+                    r = raster.get(offset) & 0xFF;
+                    g = raster.get(offset + 1) & 0xFF;
+                    b = raster.get(offset + 2) & 0xFF;
+                    a = raster.get(offset + 3) & 0xFF;
+                    break;
+            }
+            return (a << 24) | (r << 16) | (g << 8) | b;
         }
     }
 }
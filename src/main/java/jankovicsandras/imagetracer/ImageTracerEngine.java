@@ -0,0 +1,276 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+import jankovicsandras.imagetracer.ImageTracer.PreparedTrace;
+import jankovicsandras.imagetracer.ImageTracer.QuantizationStats;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Stateless tracing engine. It keeps no per-image state, so one instance can
+ * be created once and shared by any number of threads. Every call works on
+ * its own copy of the options.
+ *
+ * @author sdejonge
+ */
+public class ImageTracerEngine {
+
+    /**
+     * Tracing a BufferedImage
+     *
+     * @param image
+     * @param options
+     * @return
+     */
+    public IndexedImage trace(BufferedImage image, Options options) {
+        return traceImageData(ImageLoader.loadImageData(image),
+                callOptions(options));
+    }
+
+    /**
+     * Tracing an encoded image from a stream, like the bytes of a PNG
+     *
+     * @param stream
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public IndexedImage trace(InputStream stream, Options options)
+            throws IOException {
+        Options copy = callOptions(options);
+        return traceImageData(ImageLoader.loadImageData(stream, copy), copy);
+    }
+
+    /**
+     * Tracing ImageData, then returning IndexedImage with tracedata in layers
+     *
+     * @param imgd
+     * @param options
+     * @return
+     */
+    public IndexedImage trace(ImageData imgd, Options options) {
+        return traceImageData(imgd, callOptions(options));
+    }
+
+    /**
+     * Tracing a BufferedImage, then returning the SVG String
+     *
+     * @param image
+     * @param options
+     * @return
+     */
+    public String toSvg(BufferedImage image, Options options) {
+        Options copy = callOptions(options);
+        return SVGUtils.getSvgString(traceImageData(
+                ImageLoader.loadImageData(image), copy), copy);
+    }
+
+    /**
+     * Tracing an encoded image from a stream, then returning the SVG String
+     *
+     * @param stream
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public String toSvg(InputStream stream, Options options)
+            throws IOException {
+        Options copy = callOptions(options);
+        return SVGUtils.getSvgString(traceImageData(
+                ImageLoader.loadImageData(stream, copy), copy), copy);
+    }
+
+    /**
+     * Tracing ImageData, then returning the SVG String
+     *
+     * @param imgd
+     * @param options
+     * @return
+     */
+    public String toSvg(ImageData imgd, Options options) {
+        Options copy = callOptions(options);
+        return SVGUtils.getSvgString(traceImageData(imgd, copy), copy);
+    }
+
+    /**
+     * Running stages 1. - 4. on ImageData: color quantization, layering,
+     * pathscan and interpolation. The result can be fitted and rendered any
+     * number of times with different options.
+     *
+     * @param imgd
+     * @param options
+     * @return
+     */
+    public PreparedTrace prepare(ImageData imgd, Options options) {
+        return prepareImageData(imgd, callOptions(options));
+    }
+
+    /**
+     * Running stages 1. - 4. on a BufferedImage
+     *
+     * @param image
+     * @param options
+     * @return
+     */
+    public PreparedTrace prepare(BufferedImage image, Options options) {
+        return prepareImageData(ImageLoader.loadImageData(image),
+                callOptions(options));
+    }
+
+    /**
+     * Running stages 1. - 4. on an encoded image from a stream
+     *
+     * @param stream
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public PreparedTrace prepare(InputStream stream, Options options)
+            throws IOException {
+        Options copy = callOptions(options);
+        return prepareImageData(ImageLoader.loadImageData(stream, copy), copy);
+    }
+
+    /**
+     * Running stage 5. on a prepared trace with the ltres and qtres in
+     * options. The prepared trace is not modified.
+     *
+     * @param prepared
+     * @param options
+     * @return IndexedImage with tracedata in layers
+     */
+    public IndexedImage fit(PreparedTrace prepared, Options options) {
+        options = new Options(options);
+        IndexedImage indexedImage = new IndexedImage(
+                prepared.indexedImage.width, prepared.indexedImage.height,
+                prepared.indexedImage.indexes,
+                prepared.indexedImage.wideIndexes,
+                prepared.indexedImage.palette);
+        indexedImage.stats = prepared.indexedImage.stats;
+        indexedImage.traceData = VectorizingUtils.batchtracelayers(
+                prepared.internodes, options.ltres(), options.qtres());
+        indexedImage.segments = VectorizingUtils.segments(indexedImage, options);
+        return indexedImage;
+    }
+
+    /**
+     * Rendering the tracedata of a fitted image to an SVG String with the
+     * SVG options in options. The fitted image is not modified.
+     *
+     * @param fitted
+     * @param options
+     * @return
+     */
+    public String render(IndexedImage fitted, Options options) {
+        options = new Options(options);
+        IndexedImage indexedImage = new IndexedImage(fitted.width,
+                fitted.height, fitted.indexes, fitted.wideIndexes,
+                fitted.palette);
+        indexedImage.traceData = fitted.traceData;
+        indexedImage.stats = fitted.stats;
+        indexedImage.segments = VectorizingUtils.segments(indexedImage, options);
+        return SVGUtils.getSvgString(indexedImage, options);
+    }
+
+    /**
+     * The copy of the options for one call, used by every stage of the call.
+     * The colors of the palette file are its palette if it has none yet.
+     *
+     * @param options
+     * @return
+     */
+    private static Options callOptions(Options options) {
+        Options copy = new Options(options);
+        if ((copy.palette() == null) && (copy.paletteFile() != null)) {
+            try {
+                copy.setPalette(Utils.readPalette(copy.paletteFile()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return copy;
+    }
+
+    private IndexedImage traceImageData(ImageData imgd, Options options) {
+        return fit(prepareImageData(imgd, options), options);
+    }
+
+    private PreparedTrace prepareImageData(ImageData imgd, Options options) {
+        // a fixed or shared palette is used for every image, so there are no
+        // fast paths with palettes of their own
+        boolean fixedPalette = options.isFixedPalette();
+        if (options.isBilevel() && (options.blurRadius() <= 0)
+                && !fixedPalette) {
+            BilevelImage bilevel = BilevelImage.of(imgd, options);
+            if (bilevel != null) {
+                return prepareBilevel(bilevel, options);
+            }
+        }
+
+        // 1. Color quantization, or the exact colors if there are no more
+        // of them than the number of colors
+        IndexedImage indexedImage = null;
+        if (options.isIndexedInput() && (imgd.indexes != null)
+                && (options.blurRadius() <= 0) && !fixedPalette) {
+            // palette images: the color indexes are used as they are
+            indexedImage = VectorizingUtils.indexedColorquantization(imgd,
+                    options.numberOfColors());
+        }
+        if ((indexedImage == null) && options.isExactPalette()
+                && (options.blurRadius() <= 0) && !fixedPalette) {
+            ColorHistogram histogram = ColorHistogram.of(imgd,
+                    options.numberOfColors());
+            if (histogram != null) {
+                indexedImage = VectorizingUtils.exactColorquantization(imgd,
+                        histogram);
+            }
+        }
+        if (indexedImage == null) {
+            byte[][] palette = Utils.getPalette(options, imgd);
+            indexedImage = VectorizingUtils.colorquantization(imgd, palette,
+                    options);
+        }
+
+        // 2. - 3. Layer separation, edge detection and batch pathscan, one
+        // layer at a time
+        List<PackedPaths> bps = VectorizingUtils
+                .batchpathscan(indexedImage, options.pathOmit(),
+                        options.isBitmaskLayers());
+
+        // 4. Batch interpollation
+        List<PackedPaths> bis = VectorizingUtils
+                .batchinternodes(bps);
+
+        return new PreparedTrace(indexedImage, bis);
+    }
+
+    /**
+     * Stages 3. and 4. straight from the bit mask of a bilevel image, there
+     * is no indexed array and there are no layers
+     *
+     * @param bilevel
+     * @param options
+     * @return
+     */
+    private PreparedTrace prepareBilevel(BilevelImage bilevel,
+            Options options) {
+        IndexedImage indexedImage = new IndexedImage(bilevel.width,
+                bilevel.height, null, null, bilevel.palette);
+        QuantizationStats stats = new QuantizationStats();
+        stats.bilevel = true;
+        stats.exactPalette = bilevel.exact;
+        stats.histogramColors = bilevel.exact ? bilevel.palette.length : 0;
+        indexedImage.stats = stats;
+
+        List<PackedPaths> bps = VectorizingUtils
+                .batchpathscan(bilevel, options.pathOmit());
+        List<PackedPaths> bis = VectorizingUtils
+                .batchinternodes(bps);
+        return new PreparedTrace(indexedImage, bis);
+    }
+}
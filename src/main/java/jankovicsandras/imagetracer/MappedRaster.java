@@ -0,0 +1,241 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Mapping uncompressed rasters (PAM, PPM, PGM and headerless RGBA) into
+ * memory, so the tracer reads the samples from the page cache and the input
+ * takes next to no heap, whatever the size of the image. Files of more than
+ * 2 GB are mapped in several buffers.
+ * <p>
+ * Only 8 bit samples (maxval 255) are supported.
+ *
+ * @author sdejonge
+ */
+public class MappedRaster {
+
+    // pixels per buffer of rasters of more than 2 GB, at most 1 GB of
+    // samples
+    private static final int CHUNK_SHIFT = 28;
+    // bytes mapped for the header, which is mapped apart from the samples
+    private static final int HEADER_SIZE = 1 << 16;
+
+    /**
+     * Is this a file that can be mapped, judging by the extension
+     *
+     * @param file
+     * @return
+     */
+    public static boolean isRaster(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".pam") || name.endsWith(".pnm")
+                || name.endsWith(".ppm") || name.endsWith(".pgm")
+                || isRawRgba(file);
+    }
+
+    private static boolean isRawRgba(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".rgba") || name.endsWith(".raw");
+    }
+
+    /**
+     * Mapping a raster file. Files of more than 2 GB are mapped in several
+     * buffers, the number of pixels is limited to Integer.MAX_VALUE.
+     *
+     * @param file
+     * @param rawWidth width of headerless RGBA files, ignored otherwise
+     * @return
+     * @throws IOException
+     */
+    public static ImageData map(File file, int rawWidth) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            Header header;
+            if (isRawRgba(file)) {
+                if (rawWidth <= 0) {
+                    throw new IOException("The width of " + file
+                            + " is not given");
+                }
+                if ((size % (rawWidth * 4L)) != 0) {
+                    throw new IOException(file + " is not " + rawWidth
+                            + " RGBA pixels wide");
+                }
+                if ((size / 4) > Integer.MAX_VALUE) {
+                    throw new IOException(file + " has more than "
+                            + Integer.MAX_VALUE + " pixels");
+                }
+                header = new Header();
+                header.width = rawWidth;
+                header.height = (int) (size / (rawWidth * 4L));
+                header.channels = 4;
+                header.maxval = 255;
+            } else {
+                if (size < 2) {
+                    throw new IOException("Not a PAM, PPM or PGM file");
+                }
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0,
+                        Math.min(size, HEADER_SIZE));
+                header = buffer.get(0) == 'P' && buffer.get(1) == '7'
+                        ? pamHeader(buffer) : pnmHeader(buffer);
+            }
+            if (header.maxval != 255) {
+                throw new IOException("Only 8 bit samples are supported, "
+                        + file + " has maxval " + header.maxval);
+            }
+            if ((header.channels < 1) || (header.channels > 4)) {
+                throw new IOException("Unsupported depth " + header.channels
+                        + " in " + file);
+            }
+            long pixels = (long) header.width * header.height;
+            if (pixels > Integer.MAX_VALUE) {
+                throw new IOException(file + " has more than "
+                        + Integer.MAX_VALUE + " pixels");
+            }
+            long length = pixels * header.channels;
+            if ((header.offset + length) > size) {
+                throw new IOException(file + " is truncated");
+            }
+
+            if (length <= Integer.MAX_VALUE) {
+                return new ImageData(header.width, header.height,
+                        channel.map(FileChannel.MapMode.READ_ONLY,
+                                header.offset, length), header.channels);
+            }
+            // buffers of 1 << CHUNK_SHIFT pixels, a pixel is never split
+            // between two buffers
+            long chunkLength = (1L << CHUNK_SHIFT) * header.channels;
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((pixels
+                    + (1L << CHUNK_SHIFT) - 1) >>> CHUNK_SHIFT)];
+            for (int k = 0; k < chunks.length; k++) {
+                long start = header.offset + (k * chunkLength);
+                chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(chunkLength,
+                                (header.offset + length) - start));
+            }
+            return new ImageData(header.width, header.height, chunks,
+                    CHUNK_SHIFT, header.channels);
+        }
+    }
+
+    private static class Header {
+        int width, height, channels, maxval, offset;
+    }
+
+    /**
+     * P5 (PGM) and P6 (PPM) header: magic, width, height and maxval
+     * separated by whitespace and comments, then a single whitespace
+     */
+    private static Header pnmHeader(MappedByteBuffer buffer)
+            throws IOException {
+        Header header = new Header();
+        if ((buffer.get(0) != 'P')
+                || ((buffer.get(1) != '5') && (buffer.get(1) != '6'))) {
+            throw new IOException("Not a PAM, PPM or PGM file");
+        }
+        header.channels = buffer.get(1) == '5' ? 1 : 3;
+        buffer.position(2);
+        header.width = nextInt(buffer);
+        header.height = nextInt(buffer);
+        header.maxval = nextInt(buffer);
+        if (!buffer.hasRemaining()) {
+            throw new IOException("Malformed PNM header");
+        }
+        header.offset = buffer.position() + 1;
+        return header;
+    }
+
+    /**
+     * P7 (PAM) header: WIDTH, HEIGHT, DEPTH, MAXVAL and TUPLTYPE lines up to
+     * ENDHDR
+     */
+    private static Header pamHeader(MappedByteBuffer buffer)
+            throws IOException {
+        Header header = new Header();
+        buffer.position(2);
+        StringBuilder line = new StringBuilder();
+        while (buffer.hasRemaining()) {
+            char c = (char) (buffer.get() & 0xFF);
+            if (c != '\n') {
+                line.append(c);
+                continue;
+            }
+            String[] tokens = line.toString().trim().split("\\s+");
+            line.setLength(0);
+            switch (tokens[0]) {
+                case "WIDTH":
+                    header.width = value(tokens);
+                    break;
+                case "HEIGHT":
+                    header.height = value(tokens);
+                    break;
+                case "DEPTH":
+                    header.channels = value(tokens);
+                    break;
+                case "MAXVAL":
+                    header.maxval = value(tokens);
+                    break;
+                case "ENDHDR":
+                    header.offset = buffer.position();
+                    return header;
+                default:
+                    // TUPLTYPE, comments and empty lines
+                    break;
+            }
+        }
+        throw new IOException("PAM header without ENDHDR");
+    }
+
+    private static int value(String[] tokens) throws IOException {
+        try {
+            return Integer.parseInt(tokens[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed PAM header: "
+                    + String.join(" ", tokens), e);
+        }
+    }
+
+    /**
+     * The next decimal number of a PNM header, skipping whitespace and
+     * comments. The position is left on the byte after the number.
+     */
+    private static int nextInt(MappedByteBuffer buffer) throws IOException {
+        int c = next(buffer);
+        while (Character.isWhitespace(c) || (c == '#')) {
+            if (c == '#') {
+                while (c != '\n') {
+                    c = next(buffer);
+                }
+            }
+            c = next(buffer);
+        }
+        if (!Character.isDigit(c)) {
+            throw new IOException("Malformed PNM header");
+        }
+        long value = c - '0';
+        while (buffer.hasRemaining()
+                && Character.isDigit(buffer.get(buffer.position()) & 0xFF)) {
+            value = (value * 10) + ((buffer.get() & 0xFF) - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Malformed PNM header");
+            }
+        }
+        return (int) value;
+    }
+
+    private static int next(MappedByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new IOException("Malformed PNM header");
+        }
+        return buffer.get() & 0xFF;
+    }
+}
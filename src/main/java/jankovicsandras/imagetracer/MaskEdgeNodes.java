@@ -0,0 +1,161 @@
+package jankovicsandras.imagetracer;
+
+import java.util.Arrays;
+
+/**
+ * Edge nodes of a layer given as a bit mask of its pixels: rows of long
+ * words with a boundary of 1, so bit x of row y is pixel (x - 1, y - 1). The
+ * node types are computed from the mask words with shifts and xors, 64
+ * nodes at a time when searching for the start of a path. The walked nodes
+ * are one bit per node, and the few saddle nodes that are walked once are
+ * kept in a small hash table of longs, so the mask itself is never
+ * modified.
+ *
+ * @author sdejonge
+ */
+class MaskEdgeNodes implements EdgeNodes {
+
+    private final long[] mask;
+    // long words per row of the mask
+    private final int stride;
+    private final int width, height;
+    // nodes that are walked, in the same words as the mask
+    private final long[] cleared;
+    // the rest of the saddle nodes (5 and 10) that are walked once: open
+    // addressing on the keys y * width() + x, -1 for an empty slot. The
+    // walked nodes are never looked up, so nothing is removed.
+    private long[] saddleKeys;
+    private byte[] saddleTypes;
+    private int saddles;
+    // the mask words of the last get(): word k of rows y - 1 and y, and
+    // the same shifted by one node, so bit b is node (64 * k + b - 1)
+    private int row = -1, column = -1;
+    private long above, aboveLeft, below, belowLeft;
+
+    /**
+     * @param mask   (height + 2) * stride words, the boundary bits are 0
+     * @param stride words per row, at least (width + 2 + 63) / 64
+     * @param width  width of the image in pixels
+     * @param height height of the image in pixels
+     */
+    MaskEdgeNodes(long[] mask, int stride, int width, int height) {
+        this.mask = mask;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+        cleared = new long[mask.length];
+    }
+
+    @Override
+    public int width() {
+        return width + 2;
+    }
+
+    @Override
+    public int height() {
+        return height + 2;
+    }
+
+    // word k of mask row y, 0 outside the mask
+    private long word(int y, int k) {
+        if ((y < 1) || (y > height) || (k < 0)) {
+            return 0;
+        }
+        return mask[(y * stride) + k];
+    }
+
+    @Override
+    public int get(int x, int y) {
+        int k = x >>> 6;
+        int b = x & 63;
+        if (((cleared[(y * stride) + k] >>> b) & 1) != 0) {
+            return 0;
+        }
+        if ((y != row) || (k != column)) {
+            above = word(y - 1, k);
+            below = word(y, k);
+            aboveLeft = (above << 1) | (word(y - 1, k - 1) >>> 63);
+            belowLeft = (below << 1) | (word(y, k - 1) >>> 63);
+            row = y;
+            column = k;
+        }
+        int type = (int) ((aboveLeft >>> b) & 1)
+                | ((int) ((above >>> b) & 1) << 1)
+                | ((int) ((below >>> b) & 1) << 2)
+                | ((int) ((belowLeft >>> b) & 1) << 3);
+        if (((type == 5) || (type == 10)) && (saddles > 0)) {
+            int slot = slot(((long) y * width()) + x);
+            if (saddleKeys[slot] != -1) {
+                return saddleTypes[slot];
+            }
+        }
+        return type;
+    }
+
+    @Override
+    public void set(int x, int y, int type) {
+        if (type == 0) {
+            cleared[(y * stride) + (x >>> 6)] |= 1L << (x & 63);
+            return;
+        }
+        if ((saddleKeys == null) || ((saddles + 1) * 2 > saddleKeys.length)) {
+            grow();
+        }
+        long key = ((long) y * width()) + x;
+        int slot = slot(key);
+        if (saddleKeys[slot] == -1) {
+            saddleKeys[slot] = key;
+            saddles++;
+        }
+        saddleTypes[slot] = (byte) type;
+    }
+
+    // the slot of a key, or the empty slot where it goes
+    private int slot(long key) {
+        int mask = saddleKeys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        while ((saddleKeys[slot] != -1) && (saddleKeys[slot] != key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] keys = saddleKeys;
+        byte[] types = saddleTypes;
+        saddleKeys = new long[keys == null ? 16 : keys.length * 2];
+        saddleTypes = new byte[saddleKeys.length];
+        Arrays.fill(saddleKeys, -1);
+        if (keys != null) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != -1) {
+                    int slot = slot(keys[i]);
+                    saddleKeys[slot] = keys[i];
+                    saddleTypes[slot] = types[i];
+                }
+            }
+        }
+    }
+
+    @Override
+    public int nextEdge(int x, int y) {
+        // the node types of a word of nodes from the words above and
+        // below: a node is 0 or 15 if the bits on its left (shifted
+        // words) and right, above and below are all equal
+        for (int k = x >>> 6; k < stride; k++) {
+            long above = word(y - 1, k);
+            long below = word(y, k);
+            long aboveLeft = (above << 1) | (word(y - 1, k - 1) >>> 63);
+            long belowLeft = (below << 1) | (word(y, k - 1) >>> 63);
+            long edges = ((above ^ aboveLeft) | (below ^ belowLeft)
+                    | (above ^ below)) & ~cleared[(y * stride) + k];
+            if (k == (x >>> 6)) {
+                edges &= -1L << (x & 63);
+            }
+            if (edges != 0) {
+                return (k << 6) + Long.numberOfTrailingZeros(edges);
+            }
+        }
+        return width();
+    }
+}
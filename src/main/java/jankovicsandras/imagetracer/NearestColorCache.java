@@ -0,0 +1,59 @@
+package jankovicsandras.imagetracer;
+
+import java.util.Arrays;
+
+/**
+ * Bounded, direct-mapped cache of the closest palette color of packed ARGB
+ * values. Real images repeat the same colors a lot, so most pixels are found
+ * with one probe instead of a scan over the palette. A cache is only valid
+ * for one palette, a new one is made whenever the palette changes.
+ *
+ * @author sdejonge
+ */
+class NearestColorCache {
+
+    private final int[] keys;
+    // palette index of the key, -1 for empty slots
+    private final int[] values;
+    private final int shift;
+    long hits, misses;
+
+    /**
+     * @param size number of entries, rounded up to a power of two
+     */
+    NearestColorCache(int size) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(2, size) - 1);
+        keys = new int[1 << bits];
+        values = new int[1 << bits];
+        Arrays.fill(values, -1);
+        shift = 32 - bits;
+    }
+
+    /**
+     * The cached palette index of a color, or -1
+     *
+     * @param argb
+     * @return
+     */
+    int get(int argb) {
+        int slot = (argb * 0x9E3779B9) >>> shift;
+        if ((values[slot] >= 0) && (keys[slot] == argb)) {
+            hits++;
+            return values[slot];
+        }
+        misses++;
+        return -1;
+    }
+
+    /**
+     * Caching the palette index of a color, replacing what was in its slot
+     *
+     * @param argb
+     * @param index
+     */
+    void put(int argb, int index) {
+        int slot = (argb * 0x9E3779B9) >>> shift;
+        keys[slot] = argb;
+        values[slot] = index;
+    }
+}
@@ -2,7 +2,16 @@ package jankovicsandras.imagetracer;
 
 import com.beust.jcommander.Parameter;
 
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
+ * Tracing options. The engine copies them at the start of every call, see
+ * {@link #Options(Options)}, so the caller can reuse and change them for
+ * the next call.
+ *
  * @author sdejonge
  */
 public class Options {
@@ -13,6 +22,21 @@ public class Options {
     @Parameter(names = "-output", description = "Output file name", required = true, order = 1)
     private String output;
 
+    @Parameter(names = "-region", description = "Decode only this source region of the input, given as x,y,width,height")
+    private List<Integer> region;
+
+    @Parameter(names = "-subsampling", description = "Decode only every n-th column and row of the input")
+    private int subsampling = 1;
+
+    @Parameter(names = "-maxpixels", description = "Raise the subsampling until the decoded input has at most this many pixels, 0 for no limit")
+    private long maxPixels = 0;
+
+    @Parameter(names = "-rawwidth", description = "Width of a headerless .rgba or .raw input, which is mapped into memory like PAM, PPM and PGM inputs")
+    private int rawWidth = 0;
+
+    @Parameter(names = "-threads", description = "Number of threads for the parallel stages, 0 for every core, 1 to run on a single thread")
+    private int threads = 0;
+
     @Parameter(names = "-ltres", description = "Error threshold for straight lines")
     private double ltres = 1;
 
@@ -22,9 +46,15 @@ public class Options {
     @Parameter(names = "-pathomit", description = "Edge node paths shorter than this will be discarded for noise reduction")
     private int pathOmit = 8;
 
-    @Parameter(names = "-oldquantizer", description = "Enable or disable old quantizer algorithm based on K-means", arity = 1)
+    @Parameter(names = "-oldquantizer", description = "Enable or disable old quantizer algorithm based on K-means, the same as -quantizer KMEANS", arity = 1)
     private boolean oldQuantizer = false;
 
+    @Parameter(names = "-quantizer", description = "Palette generator: OCTREE, KMEANS (the old quantizer) or WU")
+    private Quantizer quantizer = Quantizer.OCTREE;
+
+    // a custom palette generator instead of the quantizer
+    private PaletteGenerator paletteGenerator;
+
     @Parameter(names = "-colorsampling", description = "Enable or disable color sampling", arity = 1)
     private boolean colorSampling = true;
 
@@ -34,12 +64,63 @@ public class Options {
     @Parameter(names = "-mincolorratio", description = "Color quantization will randomize a color if fewer pixels than (total pixels*mincolorratio) has it")
     private double minColorRatio = 0.02;
 
+    @Parameter(names = "-paletteonly", description = "Octree quantizer: only build the palette, with parallel classification and long sums", arity = 1)
+    private boolean paletteOnly = false;
+
+    @Parameter(names = "-samplesize", description = "Estimate the palette from a stratified sample of about this many pixels, 0 for every pixel")
+    private long sampleSize = 0;
+
+    @Parameter(names = "-samplestride", description = "Estimate the palette from one pixel of every n x n cell, overrides -samplesize, 0 for every pixel")
+    private int sampleStride = 0;
+
+    @Parameter(names = "-palette", description = "Palette file with one color per line, as RRGGBB, RRGGBBAA or R G B [A]; the colors are the initial palette of every image instead of a generated one")
+    private String paletteFile;
+
+    // fixed initial palette, like the colors of the palette file
+    private byte[][] palette;
+
+    @Parameter(names = "-palettegroup", description = "Generate the palette once for all images with this group name and reuse it for the rest of the group")
+    private String paletteGroup;
+
+    @Parameter(names = "-exactpalette", description = "Use the exact colors as the palette, without clustering, if the image has no more unique colors than numberofcolors and is not blurred", arity = 1)
+    private boolean exactPalette = false;
+
+    @Parameter(names = "-indexedinput", description = "Use the colors and color indexes of palette images directly, if no more than numberofcolors colors are used and the image is not blurred", arity = 1)
+    private boolean indexedInput = false;
+
+    @Parameter(names = "-bitmasklayers", description = "Compute the edge nodes of every color from a bit mask of its pixels, 64 nodes at a time, instead of a byte per node", arity = 1)
+    private boolean bitmaskLayers = false;
+
+    @Parameter(names = "-bilevel", description = "Trace two colored images, or images split by -bilevelthreshold, from a packed bit mask instead of indexed layers", arity = 1)
+    private boolean bilevel = false;
+
+    @Parameter(names = "-bilevelthreshold", description = "Bilevel mode: pixels darker than this luminance (0-256) are one layer, the rest the other; -1 to use bilevel mode only for images with two colors")
+    private int bilevelThreshold = -1;
+
     @Parameter(names = "-colorquantcycles", description = "Color quantization will be repeated this many times")
     private int colorQuantCycles = 3;
 
+    @Parameter(names = "-colorcache", description = "Entries of the nearest palette color cache of the color quantization, 0 to disable")
+    private int colorCacheSize = 0;
+
+    @Parameter(names = "-histogramquantization", description = "Run the color quantization cycles over a histogram of the unique colors, if there are few of them", arity = 1)
+    private boolean histogramQuantization = false;
+
+    @Parameter(names = "-convergenceshift", description = "Stop the color quantization cycles when no palette color component moves more than this, -1 to disable")
+    private int convergenceShift = -1;
+
+    @Parameter(names = "-convergencereassigned", description = "Stop the color quantization cycles when at most this many pixels change palette color in a cycle, -1 to disable")
+    private long convergenceReassigned = -1;
+
+    @Parameter(names = "-simd", description = "Use the Vector API kernels on Java 17+, if jdk.incubator.vector is added to the runtime", arity = 1)
+    private boolean simd = true;
+
     @Parameter(names = "-blurradius", description = "Set this to 1f..5f for selective Gaussian blur preprocessing")
     private double blurRadius = 0;
 
+    @Parameter(names = "-blurmode", description = "Selective blur kernels: GAUSSIAN, or BOX for a box filter approximation whose cost does not grow with the radius and whose radius is not limited to 5")
+    private BlurMode blurMode = BlurMode.GAUSSIAN;
+
     @Parameter(names = "-blurdelta", description = "RGBA delta treshold for selective Gaussian blur preprocessing")
     private double blurDelta = 20;
 
@@ -55,12 +136,74 @@ public class Options {
     @Parameter(names = "-desc", description = "Enable or disable SVG descriptions", arity = 1)
     private boolean desc = true;
 
+    @Parameter(names = "-stats", description = "Print the color quantization counters to stderr", arity = 1)
+    private boolean stats = false;
+
     @Parameter(names = "-lcpr", description = "Straight line control point radius, if this is greater than zero, small circles will be drawn in the SVG. Do not use this for big/complex images")
     private double lcpr = 0;
 
     @Parameter(names = "-qcpr", description = "Quadratic spline control point radius, if this is greater than zero, small circles and lines will be drawn in the SVG. Do not use this for big/complex images")
     private double qcpr = 0;
 
+    public Options() {
+    }
+
+    /**
+     * Copying options, tracing works on a copy so that the options of a
+     * running trace are not changed by the caller. The region and the
+     * palette are copied as well. The palette generator is shared, so it
+     * must not be changed while a trace uses it, and the options must not
+     * be changed by another thread while they are copied.
+     *
+     * @param other
+     */
+    public Options(Options other) {
+        input = other.input;
+        output = other.output;
+        region = other.region == null ? null : new ArrayList<>(other.region);
+        subsampling = other.subsampling;
+        maxPixels = other.maxPixels;
+        rawWidth = other.rawWidth;
+        threads = other.threads;
+        ltres = other.ltres;
+        qtres = other.qtres;
+        pathOmit = other.pathOmit;
+        oldQuantizer = other.oldQuantizer;
+        quantizer = other.quantizer;
+        paletteGenerator = other.paletteGenerator;
+        colorSampling = other.colorSampling;
+        numberOfColors = other.numberOfColors;
+        minColorRatio = other.minColorRatio;
+        paletteOnly = other.paletteOnly;
+        sampleSize = other.sampleSize;
+        sampleStride = other.sampleStride;
+        paletteFile = other.paletteFile;
+        palette = other.palette == null ? null
+                : Utils.copyPalette(other.palette);
+        paletteGroup = other.paletteGroup;
+        exactPalette = other.exactPalette;
+        indexedInput = other.indexedInput;
+        bitmaskLayers = other.bitmaskLayers;
+        bilevel = other.bilevel;
+        bilevelThreshold = other.bilevelThreshold;
+        colorQuantCycles = other.colorQuantCycles;
+        colorCacheSize = other.colorCacheSize;
+        histogramQuantization = other.histogramQuantization;
+        convergenceShift = other.convergenceShift;
+        convergenceReassigned = other.convergenceReassigned;
+        simd = other.simd;
+        blurRadius = other.blurRadius;
+        blurMode = other.blurMode;
+        blurDelta = other.blurDelta;
+        scale = other.scale;
+        roundCoords = other.roundCoords;
+        viewBox = other.viewBox;
+        desc = other.desc;
+        stats = other.stats;
+        lcpr = other.lcpr;
+        qcpr = other.qcpr;
+    }
+
     public String input() {
         return input;
     }
@@ -77,6 +220,55 @@ public class Options {
         this.output = output;
     }
 
+    public Rectangle region() {
+        if (region == null) {
+            return null;
+        }
+        if (region.size() != 4) {
+            throw new IllegalArgumentException(
+                    "region needs x,y,width,height, got " + region);
+        }
+        return new Rectangle(region.get(0), region.get(1), region.get(2),
+                region.get(3));
+    }
+
+    public void setRegion(Rectangle region) {
+        this.region = region == null ? null : Arrays.asList(region.x,
+                region.y, region.width, region.height);
+    }
+
+    public int subsampling() {
+        return subsampling;
+    }
+
+    public void setSubsampling(int subsampling) {
+        this.subsampling = subsampling;
+    }
+
+    public long maxPixels() {
+        return maxPixels;
+    }
+
+    public void setMaxPixels(long maxPixels) {
+        this.maxPixels = maxPixels;
+    }
+
+    public int rawWidth() {
+        return rawWidth;
+    }
+
+    public void setRawWidth(int rawWidth) {
+        this.rawWidth = rawWidth;
+    }
+
+    public int threads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     public double ltres() {
         return ltres;
     }
@@ -102,13 +294,34 @@ public class Options {
     }
 
     public boolean isOldQuantizer() {
-        return oldQuantizer;
+        return quantizer() == Quantizer.KMEANS;
     }
 
     public void setOldQuantizer(boolean oldQuantizer) {
         this.oldQuantizer = oldQuantizer;
     }
 
+    public Quantizer quantizer() {
+        return oldQuantizer ? Quantizer.KMEANS : quantizer;
+    }
+
+    public void setQuantizer(Quantizer quantizer) {
+        this.quantizer = quantizer;
+    }
+
+    /**
+     * The custom palette generator if there is one, otherwise the quantizer
+     *
+     * @return
+     */
+    public PaletteGenerator paletteGenerator() {
+        return paletteGenerator != null ? paletteGenerator : quantizer();
+    }
+
+    public void setPaletteGenerator(PaletteGenerator paletteGenerator) {
+        this.paletteGenerator = paletteGenerator;
+    }
+
     public boolean isColorSampling() {
         return colorSampling;
     }
@@ -133,6 +346,110 @@ public class Options {
         this.minColorRatio = minColorRatio;
     }
 
+    public boolean isPaletteOnly() {
+        return paletteOnly;
+    }
+
+    public void setPaletteOnly(boolean paletteOnly) {
+        this.paletteOnly = paletteOnly;
+    }
+
+    public long sampleSize() {
+        return sampleSize;
+    }
+
+    public void setSampleSize(long sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    public int sampleStride() {
+        return sampleStride;
+    }
+
+    public void setSampleStride(int sampleStride) {
+        this.sampleStride = sampleStride;
+    }
+
+    public String paletteFile() {
+        return paletteFile;
+    }
+
+    public void setPaletteFile(String paletteFile) {
+        this.paletteFile = paletteFile;
+    }
+
+    /**
+     * The fixed initial palette, null to generate one. If it is null, the
+     * engine reads the palette of every call from paletteFile().
+     *
+     * @return
+     */
+    public byte[][] palette() {
+        return palette;
+    }
+
+    public void setPalette(byte[][] palette) {
+        this.palette = palette;
+    }
+
+    public String paletteGroup() {
+        return paletteGroup;
+    }
+
+    public void setPaletteGroup(String paletteGroup) {
+        this.paletteGroup = paletteGroup;
+    }
+
+    /**
+     * Whether the initial palette is given or shared, then the palette is
+     * not taken from the image, even if it has few colors
+     *
+     * @return
+     */
+    public boolean isFixedPalette() {
+        return (palette != null) || (paletteGroup != null);
+    }
+
+    public boolean isExactPalette() {
+        return exactPalette;
+    }
+
+    public void setExactPalette(boolean exactPalette) {
+        this.exactPalette = exactPalette;
+    }
+
+    public boolean isIndexedInput() {
+        return indexedInput;
+    }
+
+    public void setIndexedInput(boolean indexedInput) {
+        this.indexedInput = indexedInput;
+    }
+
+    public boolean isBitmaskLayers() {
+        return bitmaskLayers;
+    }
+
+    public void setBitmaskLayers(boolean bitmaskLayers) {
+        this.bitmaskLayers = bitmaskLayers;
+    }
+
+    public boolean isBilevel() {
+        return bilevel;
+    }
+
+    public void setBilevel(boolean bilevel) {
+        this.bilevel = bilevel;
+    }
+
+    public int bilevelThreshold() {
+        return bilevelThreshold;
+    }
+
+    public void setBilevelThreshold(int bilevelThreshold) {
+        this.bilevelThreshold = bilevelThreshold;
+    }
+
     public int colorQuantCycles() {
         return colorQuantCycles;
     }
@@ -141,6 +458,46 @@ public class Options {
         this.colorQuantCycles = colorQuantCycles;
     }
 
+    public int colorCacheSize() {
+        return colorCacheSize;
+    }
+
+    public void setColorCacheSize(int colorCacheSize) {
+        this.colorCacheSize = colorCacheSize;
+    }
+
+    public boolean isHistogramQuantization() {
+        return histogramQuantization;
+    }
+
+    public void setHistogramQuantization(boolean histogramQuantization) {
+        this.histogramQuantization = histogramQuantization;
+    }
+
+    public int convergenceShift() {
+        return convergenceShift;
+    }
+
+    public void setConvergenceShift(int convergenceShift) {
+        this.convergenceShift = convergenceShift;
+    }
+
+    public long convergenceReassigned() {
+        return convergenceReassigned;
+    }
+
+    public void setConvergenceReassigned(long convergenceReassigned) {
+        this.convergenceReassigned = convergenceReassigned;
+    }
+
+    public boolean isSimd() {
+        return simd;
+    }
+
+    public void setSimd(boolean simd) {
+        this.simd = simd;
+    }
+
     public double blurRadius() {
         return blurRadius;
     }
@@ -149,6 +506,14 @@ public class Options {
         this.blurRadius = blurRadius;
     }
 
+    public BlurMode blurMode() {
+        return blurMode;
+    }
+
+    public void setBlurMode(BlurMode blurMode) {
+        this.blurMode = blurMode;
+    }
+
     public double blurDelta() {
         return blurDelta;
     }
@@ -189,6 +554,14 @@ public class Options {
         this.desc = desc;
     }
 
+    public boolean isStats() {
+        return stats;
+    }
+
+    public void setStats(boolean stats) {
+        this.stats = stats;
+    }
+
     public double lcpr() {
         return lcpr;
     }
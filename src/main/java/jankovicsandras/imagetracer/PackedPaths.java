@@ -0,0 +1,118 @@
+package jankovicsandras.imagetracer;
+
+import java.util.Arrays;
+
+/**
+ * The paths of one layer in primitive arrays: the x and y of every point
+ * packed one after the other in an int array, a byte code per point, and
+ * the offset of the first point of every path. pathscan stores the edge
+ * node type of a point as its code, internodes the direction to the next
+ * point (0 - 8, like the directions of the internodes). Internodes lie
+ * halfway between path points, so their coordinates are stored doubled.
+ * <p>
+ * Points are added to the open path, which is closed, or dropped without
+ * leaving anything behind.
+ *
+ * @author sdejonge
+ */
+public class PackedPaths {
+
+    // coords[2 * point] = x, coords[2 * point + 1] = y
+    private int[] coords;
+    private byte[] codes;
+    // the first point of path p is offsets[p], offsets[size] is the first
+    // point of the open path
+    private int[] offsets;
+    private int size, points;
+
+    PackedPaths() {
+        this(16, 256);
+    }
+
+    /**
+     * @param paths  expected number of paths
+     * @param points expected number of points of all paths
+     */
+    PackedPaths(int paths, int points) {
+        coords = new int[Math.max(points, 1) * 2];
+        codes = new byte[Math.max(points, 1)];
+        offsets = new int[Math.max(paths, 1) + 1];
+    }
+
+    /**
+     * @return the number of closed paths
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of points of all closed paths
+     */
+    public int points() {
+        return offsets[size];
+    }
+
+    /**
+     * @param path
+     * @return the index of the first point of a path
+     */
+    public int start(int path) {
+        return offsets[path];
+    }
+
+    /**
+     * @param path
+     * @return the number of points of a path
+     */
+    public int length(int path) {
+        return offsets[path + 1] - offsets[path];
+    }
+
+    public int x(int point) {
+        return coords[point * 2];
+    }
+
+    public int y(int point) {
+        return coords[(point * 2) + 1];
+    }
+
+    public int code(int point) {
+        return codes[point];
+    }
+
+    /**
+     * Adding a point to the open path
+     *
+     * @param x
+     * @param y
+     * @param code
+     */
+    void add(int x, int y, int code) {
+        if (points == codes.length) {
+            codes = Arrays.copyOf(codes, points * 2);
+            coords = Arrays.copyOf(coords, points * 4);
+        }
+        coords[points * 2] = x;
+        coords[(points * 2) + 1] = y;
+        codes[points] = (byte) code;
+        points++;
+    }
+
+    /**
+     * Closing the open path, the next point starts a new path
+     */
+    void close() {
+        if ((size + 2) > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[++size] = points;
+    }
+
+    /**
+     * Removing the points of the open path
+     */
+    void drop() {
+        points = offsets[size];
+    }
+}
@@ -0,0 +1,84 @@
+package jankovicsandras.imagetracer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Palettes shared by the images of a group, see Options.paletteGroup(). The
+ * palette of a group is generated once, from the first image that is traced
+ * with it, and reused for every later image of the group, so a batch gets
+ * the same palette for every image. The cache is static and lives as long
+ * as the class, groups that are done can be removed.
+ *
+ * @author sdejonge
+ */
+public class PaletteCache {
+
+    // the palette of a group is complete once it is generated, the map
+    // itself is never locked while a palette is generated
+    private static final ConcurrentMap<String, CompletableFuture<byte[][]>>
+            PALETTES = new ConcurrentHashMap<>();
+
+    private PaletteCache() {
+    }
+
+    /**
+     * The palette of a group, generated if the group has none yet. Images
+     * of the same group that are traced at the same time wait for the first
+     * one to generate it. If that fails, they get a CompletionException,
+     * and the next image of the group generates the palette again.
+     *
+     * @param group
+     * @param generator
+     * @return the cached palette, which must not be modified
+     */
+    static byte[][] get(String group, Supplier<byte[][]> generator) {
+        CompletableFuture<byte[][]> palette = PALETTES.get(group);
+        if (palette == null) {
+            CompletableFuture<byte[][]> generated = new CompletableFuture<>();
+            palette = PALETTES.putIfAbsent(group, generated);
+            if (palette == null) {
+                palette = generated;
+                try {
+                    generated.complete(generator.get());
+                } catch (RuntimeException | Error e) {
+                    // the next image of the group tries again
+                    PALETTES.remove(group, generated);
+                    generated.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+        return palette.join();
+    }
+
+    /**
+     * Setting the palette of a group, like a palette of an earlier run
+     *
+     * @param group
+     * @param palette
+     */
+    public static void put(String group, byte[][] palette) {
+        PALETTES.put(group, CompletableFuture.completedFuture(
+                Utils.copyPalette(palette)));
+    }
+
+    /**
+     * Removing the palette of a group, the next image of the group
+     * generates a new one
+     *
+     * @param group
+     */
+    public static void remove(String group) {
+        PALETTES.remove(group);
+    }
+
+    /**
+     * Removing the palettes of all groups
+     */
+    public static void clear() {
+        PALETTES.clear();
+    }
+}
@@ -0,0 +1,24 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+/**
+ * Generating the initial palette of the color quantization. The built-in
+ * generators are the {@link Quantizer} constants, others can be set with
+ * {@link Options#setPaletteGenerator(PaletteGenerator)}.
+ *
+ * @author sdejonge
+ */
+public interface PaletteGenerator {
+
+    /**
+     * A palette of options.numberOfColors() colors, array[numberofcolors][4]
+     * where [i][0] = R ; [i][1] = G ; [i][2] = B ; [i][3] = A, every value
+     * stored as (byte) (value - 128)
+     *
+     * @param imgd
+     * @param options
+     * @return
+     */
+    byte[][] generatePalette(ImageData imgd, Options options);
+}
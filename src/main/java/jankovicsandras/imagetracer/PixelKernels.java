@@ -0,0 +1,38 @@
+package jankovicsandras.imagetracer;
+
+/**
+ * Data parallel kernels of the pixel loops, implemented with the Vector API
+ * on Java 17+, see {@link Simd}. The results are exactly the same as those of
+ * the scalar loops.
+ *
+ * @author sdejonge
+ */
+interface PixelKernels {
+
+    /**
+     * Closest palette color of every pixel, with the rectilinear distance and
+     * tie-breaking of ColorQuantizationTask.nearest()
+     *
+     * @param pixels packed ARGB pixels
+     * @param offset index of the first pixel
+     * @param length number of pixels
+     * @param pal    unsigned palette colors
+     * @param out    output: out[i] is the palette index of pixels[offset + i]
+     */
+    void nearest(int[] pixels, int offset, int length, int[][] pal, int[] out);
+
+    /**
+     * Fixed point weighted sums of the channels for the blur: acc[c][i] is
+     * the sum of channel c of pixels[offset + i + (k * stride)] * weights[k]
+     *
+     * @param pixels  packed ARGB pixels
+     * @param offset  index of the first sample of the first output
+     * @param stride  distance of the samples of neighbouring kernel weights,
+     *                1 for horizontal and the width for vertical blur
+     * @param weights fixed point kernel weights
+     * @param length  number of outputs
+     * @param acc     output: R, G, B and A sums
+     */
+    void weightedSum(int[] pixels, int offset, int stride, int[] weights,
+            int length, int[][] acc);
+}
@@ -0,0 +1,74 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+/**
+ * Deterministic stratified sampling of large images: the image is divided in
+ * stride x stride cells and one pixel is taken from every cell, at a position
+ * in the cell that is hashed from the cell coordinates, so regular patterns
+ * don't alias with the grid. The same image and options always give the same
+ * sample.
+ *
+ * @author sdejonge
+ */
+public class PixelSampler {
+
+    /**
+     * The sampling stride of options for this image: the sample stride if it
+     * is set, otherwise the stride that gives about sampleSize pixels, and 1
+     * for no sampling
+     *
+     * @param imgd
+     * @param options
+     * @return
+     */
+    public static int stride(ImageData imgd, Options options) {
+        if (options.sampleStride() > 0) {
+            return options.sampleStride();
+        }
+        if (options.sampleSize() > 0) {
+            double pixels = (double) imgd.width * imgd.height;
+            return Math.max(1, (int) Math.floor(
+                    Math.sqrt(pixels / options.sampleSize())));
+        }
+        return 1;
+    }
+
+    /**
+     * The sample of an image, one pixel of every cell
+     *
+     * @param imgd
+     * @param stride
+     * @return the sample as an image of ceil(width / stride) x
+     * ceil(height / stride) pixels, or imgd itself if stride is 1
+     */
+    public static ImageData sample(ImageData imgd, int stride) {
+        if (stride <= 1) {
+            return imgd;
+        }
+        int cols = ((imgd.width - 1) / stride) + 1;
+        int rows = ((imgd.height - 1) / stride) + 1;
+        int[] pixels = new int[cols * rows];
+        for (int cy = 0; cy < rows; cy++) {
+            int y0 = cy * stride;
+            int cellHeight = Math.min(stride, imgd.height - y0);
+            for (int cx = 0; cx < cols; cx++) {
+                int x0 = cx * stride;
+                int cellWidth = Math.min(stride, imgd.width - x0);
+                int hash = hash(cx, cy);
+                int x = x0 + ((hash & 0xFFFF) % cellWidth);
+                int y = y0 + ((hash >>> 16) % cellHeight);
+                pixels[(cy * cols) + cx] = imgd.argb((y * imgd.width) + x);
+            }
+        }
+        return new ImageData(cols, rows, pixels);
+    }
+
+    private static int hash(int cx, int cy) {
+        int h = (cx * 0x9E3779B1) ^ (cy * 0x85EBCA77);
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 12;
+        return h;
+    }
+}
@@ -1,5 +1,12 @@
 package jankovicsandras.imagetracer;
 
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 
 /*
@@ -266,24 +273,256 @@ public class Quantize {
 
     /**
      * Reduce the image to the given number of colors. The pixels are
-     * reduced in place.
+     * left untouched, the color numbers are assigned to a separate
+     * array.
      *
+     * @param pixels the image
      * @return The new color palette.
      */
-    public static int[] quantizeImage(int pixels[][], int max_colors) {
+    public static int[] quantizeImage(ImageData pixels, int max_colors) {
         Cube cube = new Cube(pixels, max_colors);
         cube.classification();
         cube.reduction();
         cube.assignment();
+        cube.release();
         return cube.colormap;
     }
 
+    /**
+     * Only the color palette of the image. There is no assignment pass, the
+     * pixel counts and color sums are longs, so they don't overflow on large
+     * images, and the pixels are classified in parallel: every band of
+     * pixels gets its own partial tree, and the trees are merged before the
+     * reduction.
+     *
+     * @param pixels     the image
+     * @param max_colors
+     * @param options    the threads to use
+     * @return The new color palette.
+     */
+    public static int[] quantizePalette(ImageData pixels, int max_colors,
+            Options options) {
+        int length = pixels.width * pixels.height;
+        int parallelism = Utils.parallelism(options);
+        int band = Math.max(65536, (length + parallelism - 1) / parallelism);
+        Cube cube = Utils.invoke(new ClassificationTask(pixels, max_colors,
+                0, length, band), options);
+        cube.reduction();
+        cube.colormap();
+        cube.release();
+        return cube.colormap;
+    }
+
+    /**
+     * Classification of a range of pixels into partial trees, which are
+     * merged when they are joined
+     */
+    static class ClassificationTask extends RecursiveTask<Cube> {
+        private static final long serialVersionUID = 1L;
+
+        private final ImageData pixels;
+        private final int max_colors, start, end, band;
+
+        ClassificationTask(ImageData pixels, int max_colors, int start,
+                int end, int band) {
+            this.pixels = pixels;
+            this.max_colors = max_colors;
+            this.start = start;
+            this.end = end;
+            this.band = band;
+        }
+
+        @Override
+        protected Cube compute() {
+            if ((end - start) > band) {
+                int mid = (start + end) >>> 1;
+                ClassificationTask first = new ClassificationTask(pixels,
+                        max_colors, start, mid, band);
+                ClassificationTask second = new ClassificationTask(pixels,
+                        max_colors, mid, end, band);
+                first.fork();
+                Cube cube = second.compute();
+                return cube.merge(first.join());
+            }
+            Cube cube = new Cube(pixels, max_colors, true);
+            cube.classification(start, end);
+            return cube;
+        }
+    }
+
+    // node pools of finished cubes, for reuse
+    private static final ConcurrentLinkedQueue<Nodes> SPARE_NODES =
+            new ConcurrentLinkedQueue<>();
+    // at most one spare pool per core is kept, and only pools that did not
+    // grow past MAX_SPARE_CAPACITY nodes, so the spares stay small
+    private static final int MAX_SPARE_NODES =
+            Runtime.getRuntime().availableProcessors();
+    private static final int MAX_SPARE_CAPACITY = 1 << 16;
+    private static final AtomicInteger SPARE_COUNT = new AtomicInteger();
+
+    /**
+     * The nodes of the tree as parallel arrays: node n is described by
+     * element n of every array, and its children by child[n * 8 + id]. The
+     * root is node 0, so child 0 means no child. The arrays grow as needed
+     * and are kept for the next cube when a cube is released, if they are
+     * not too big.
+     * <p>
+     * The counts and sums are longs. In the cubes of quantizeImage() they are
+     * kept in int range and wrap around like the ints they used to be, so
+     * the colormap stays the same.
+     */
+    static class Nodes {
+        // child nodes, 8 per node
+        int child[];
+        // parent node, the root is its own parent
+        int parent[];
+        int nchild[];
+        // index within the parent
+        int id[];
+        // level within the tree
+        int level[];
+        // color midpoint
+        int mid_red[];
+        int mid_green[];
+        int mid_blue[];
+        // the pixel count for the node and all children
+        long number_pixels[];
+        // the pixel count for the node
+        int unique[];
+        // the sum of all pixels contained in the node
+        long total_red[];
+        long total_green[];
+        long total_blue[];
+        // used to build the colormap
+        int color_number[];
+
+        // nodes in use or released, and the released nodes for reuse
+        int size;
+        int free[];
+        int freeCount;
+
+        Nodes() {
+            allocateArrays(1024);
+        }
+
+        private void allocateArrays(int capacity) {
+            child = new int[capacity * 8];
+            parent = new int[capacity];
+            nchild = new int[capacity];
+            id = new int[capacity];
+            level = new int[capacity];
+            mid_red = new int[capacity];
+            mid_green = new int[capacity];
+            mid_blue = new int[capacity];
+            number_pixels = new long[capacity];
+            unique = new int[capacity];
+            total_red = new long[capacity];
+            total_green = new long[capacity];
+            total_blue = new long[capacity];
+            color_number = new int[capacity];
+            free = new int[capacity];
+        }
+
+        private void grow() {
+            int capacity = parent.length * 2;
+            child = Arrays.copyOf(child, capacity * 8);
+            parent = Arrays.copyOf(parent, capacity);
+            nchild = Arrays.copyOf(nchild, capacity);
+            id = Arrays.copyOf(id, capacity);
+            level = Arrays.copyOf(level, capacity);
+            mid_red = Arrays.copyOf(mid_red, capacity);
+            mid_green = Arrays.copyOf(mid_green, capacity);
+            mid_blue = Arrays.copyOf(mid_blue, capacity);
+            number_pixels = Arrays.copyOf(number_pixels, capacity);
+            unique = Arrays.copyOf(unique, capacity);
+            total_red = Arrays.copyOf(total_red, capacity);
+            total_green = Arrays.copyOf(total_green, capacity);
+            total_blue = Arrays.copyOf(total_blue, capacity);
+            color_number = Arrays.copyOf(color_number, capacity);
+            free = Arrays.copyOf(free, capacity);
+        }
+
+        /**
+         * Forgetting all nodes, the arrays are kept
+         */
+        void clear() {
+            size = 0;
+            freeCount = 0;
+        }
+
+        /**
+         * A new node without children and with zero counts
+         */
+        int allocate() {
+            int n;
+            if (freeCount > 0) {
+                n = free[--freeCount];
+            } else {
+                if (size == parent.length) {
+                    grow();
+                }
+                n = size++;
+            }
+            Arrays.fill(child, n * 8, (n * 8) + 8, 0);
+            nchild[n] = 0;
+            number_pixels[n] = 0;
+            unique[n] = 0;
+            total_red[n] = 0;
+            total_green[n] = 0;
+            total_blue[n] = 0;
+            color_number[n] = 0;
+            return n;
+        }
+
+        /**
+         * Releasing a node that is no longer referenced, for reuse
+         */
+        void release(int n) {
+            free[freeCount++] = n;
+        }
+
+        /**
+         * The pool of a finished cube, or a new one
+         */
+        static Nodes take() {
+            Nodes nodes = SPARE_NODES.poll();
+            if (nodes == null) {
+                nodes = new Nodes();
+            } else {
+                SPARE_COUNT.decrementAndGet();
+            }
+            nodes.clear();
+            return nodes;
+        }
+
+        /**
+         * Keeping the pool of a finished cube for the next cube, unless
+         * there are enough spare pools or the pool is too big to keep
+         */
+        static void giveBack(Nodes nodes) {
+            if (nodes.parent.length > MAX_SPARE_CAPACITY) {
+                return;
+            }
+            if (SPARE_COUNT.incrementAndGet() > MAX_SPARE_NODES) {
+                SPARE_COUNT.decrementAndGet();
+                return;
+            }
+            SPARE_NODES.add(nodes);
+        }
+    }
+
     static class Cube {
-        int pixels[][];
+        ImageData pixels;
         int max_colors;
         int colormap[];
-
-        Node root;
+        // color numbers of the pixels after assignment
+        int indexes[];
+
+        // the tree, the root is node 0
+        Nodes tree;
+        // long counts and sums, otherwise they wrap around like ints
+        final boolean wide;
+        static final int ROOT = 0;
         int depth;
 
         // counter for the number of colors in the cube. this gets
@@ -293,9 +532,19 @@ public class Quantize {
         // counter for the number of nodes in the tree
         int nodes;
 
-        Cube(int pixels[][], int max_colors) {
+        Cube(ImageData pixels, int max_colors) {
+            this(pixels, max_colors, false);
+        }
+
+        /**
+         * @param pixels
+         * @param max_colors
+         * @param wide       long counts and sums
+         */
+        Cube(ImageData pixels, int max_colors, boolean wide) {
             this.pixels = pixels;
             this.max_colors = max_colors;
+            this.wide = wide;
 
             int i = max_colors;
             // tree_depth = log max_colors
@@ -312,7 +561,65 @@ public class Quantize {
                 depth = 2;
             }
 
-            root = new Node(this);
+            tree = Nodes.take();
+            int root = tree.allocate();
+            tree.parent[root] = root;
+            tree.id[root] = 0;
+            tree.level[root] = 0;
+            tree.number_pixels[root] = wide ? Long.MAX_VALUE
+                    : Integer.MAX_VALUE;
+            tree.mid_red[root] = (MAX_RGB + 1) >> 1;
+            tree.mid_green[root] = (MAX_RGB + 1) >> 1;
+            tree.mid_blue[root] = (MAX_RGB + 1) >> 1;
+        }
+
+        /**
+         * Giving the node pool back for reuse, the cube can't be used
+         * anymore
+         */
+        void release() {
+            if (tree != null) {
+                Nodes.giveBack(tree);
+                tree = null;
+            }
+        }
+
+        /**
+         * The sum of two counts or sums, wrapped around like ints if the
+         * cube is not wide
+         */
+        private long add(long a, long b) {
+            return wide ? a + b : (int) (a + b);
+        }
+
+        /**
+         * A new child node of parent
+         */
+        int newNode(int parent, int id, int level) {
+            Nodes tree = this.tree;
+            int n = tree.allocate();
+            tree.parent[n] = parent;
+            tree.id[n] = id;
+            tree.level[n] = level;
+
+            // add to the cube
+            ++nodes;
+            if (level == depth) {
+                ++colors;
+            }
+
+            // add to the parent
+            ++tree.nchild[parent];
+            tree.child[(parent * 8) + id] = n;
+
+            // figure out our midpoint
+            int bi = (1 << (MAX_TREE_DEPTH - level)) >> 1;
+            tree.mid_red[n] = tree.mid_red[parent] + ((id & 1) > 0 ? bi : -bi);
+            tree.mid_green[n] = tree.mid_green[parent]
+                    + ((id & 2) > 0 ? bi : -bi);
+            tree.mid_blue[n] = tree.mid_blue[parent]
+                    + ((id & 4) > 0 ? bi : -bi);
+            return n;
         }
 
         /*
@@ -354,45 +661,55 @@ public class Quantize {
          *   represented by this node.
          */
         void classification() {
-            int pixels[][] = this.pixels;
+            classification(0, pixels.width * pixels.height);
+        }
 
-            int width = pixels.length;
-            int height = pixels[0].length;
+        /**
+         * Classification of the pixels from start to end, in the order of
+         * the rows from the last pixel. The original int[x][y] version
+         * went column by column; the tree does not depend on the order,
+         * because pruneLevel() folds the whole lowest level into the
+         * parents, which then hold the same sums as if the pixels had
+         * been classified there. Rows follow the memory of the ImageData.
+         */
+        void classification(int start, int end) {
+            ImageData pixels = this.pixels;
+            Nodes tree = this.tree;
 
             // convert to indexed color
-            for (int x = width; x-- > 0; ) {
-                for (int y = height; y-- > 0; ) {
-                    int pixel = pixels[x][y];
-                    int red = (pixel >> 16) & 0xFF;
-                    int green = (pixel >> 8) & 0xFF;
-                    int blue = (pixel >> 0) & 0xFF;
-
-                    // a hard limit on the number of nodes in the tree
-                    if (nodes > MAX_NODES) {
-                        //System.out.println("pruning");
-                        root.pruneLevel();
-                        --depth;
-                    }
+            for (int i = end; i-- > start; ) {
+                int pixel = pixels.argb(i);
+                int red = (pixel >> 16) & 0xFF;
+                int green = (pixel >> 8) & 0xFF;
+                int blue = (pixel >> 0) & 0xFF;
+
+                // a hard limit on the number of nodes in the tree
+                if (nodes > MAX_NODES) {
+                    //System.out.println("pruning");
+                    pruneLevel(ROOT);
+                    --depth;
+                }
 
-                    // walk the tree to depth, increasing the
-                    // number_pixels count for each node
-                    Node node = root;
-                    for (int level = 1; level <= depth; ++level) {
-                        int id = (((red > node.mid_red ? 1 : 0) << 0) |
-                                ((green > node.mid_green ? 1 : 0) << 1) |
-                                ((blue > node.mid_blue ? 1 : 0) << 2));
-                        if (node.child[id] == null) {
-                            new Node(node, id, level);
-                        }
-                        node = node.child[id];
-                        node.number_pixels += SHIFT[level];
+                // walk the tree to depth, increasing the
+                // number_pixels count for each node
+                int node = ROOT;
+                for (int level = 1; level <= depth; ++level) {
+                    int id = (((red > tree.mid_red[node] ? 1 : 0) << 0) |
+                            ((green > tree.mid_green[node] ? 1 : 0) << 1) |
+                            ((blue > tree.mid_blue[node] ? 1 : 0) << 2));
+                    int child = tree.child[(node * 8) + id];
+                    if (child == 0) {
+                        child = newNode(node, id, level);
                     }
-
-                    ++node.unique;
-                    node.total_red += red;
-                    node.total_green += green;
-                    node.total_blue += blue;
+                    node = child;
+                    tree.number_pixels[node] = add(tree.number_pixels[node],
+                            SHIFT[level]);
                 }
+
+                ++tree.unique[node];
+                tree.total_red[node] = add(tree.total_red[node], red);
+                tree.total_green[node] = add(tree.total_green[node], green);
+                tree.total_blue[node] = add(tree.total_blue[node], blue);
             }
         }
 
@@ -409,10 +726,63 @@ public class Quantize {
          * characteristics for later averaging.
          */
         void reduction() {
-            int threshold = 1;
+            long threshold = 1;
             while (colors > max_colors) {
                 colors = 0;
-                threshold = root.reduce(threshold, Integer.MAX_VALUE);
+                threshold = reduce(ROOT, threshold,
+                        wide ? Long.MAX_VALUE : Integer.MAX_VALUE);
+            }
+        }
+
+        /**
+         * Merging the tree of other into this tree, for parallel
+         * classification of wide cubes. The deeper tree is pruned to the
+         * depth of the other first. other is released.
+         *
+         * @param other
+         * @return this
+         */
+        Cube merge(Cube other) {
+            while (depth > other.depth) {
+                pruneLevel(ROOT);
+                --depth;
+            }
+            while (other.depth > depth) {
+                other.pruneLevel(ROOT);
+                --other.depth;
+            }
+            merge(other, ROOT, ROOT);
+            other.release();
+
+            // the same hard limit as in classification
+            while (nodes > MAX_NODES) {
+                pruneLevel(ROOT);
+                --depth;
+            }
+            return this;
+        }
+
+        private void merge(Cube other, int from, int to) {
+            Nodes src = other.tree;
+            Nodes tree = this.tree;
+            if (to != ROOT) {
+                tree.number_pixels[to] += src.number_pixels[from];
+            }
+            tree.unique[to] += src.unique[from];
+            tree.total_red[to] += src.total_red[from];
+            tree.total_green[to] += src.total_green[from];
+            tree.total_blue[to] += src.total_blue[from];
+            if (src.nchild[from] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int child = src.child[(from * 8) + id];
+                    if (child != 0) {
+                        int target = tree.child[(to * 8) + id];
+                        if (target == 0) {
+                            target = newNode(to, id, src.level[child]);
+                        }
+                        merge(other, child, target);
+                    }
+                }
             }
         }
 
@@ -445,267 +815,193 @@ public class Quantize {
          * the index of this node's mean color in the color map.
          */
         void assignment() {
-            colormap = new int[colors];
-
-            colors = 0;
-            root.colormap();
+            colormap();
 
-            int pixels[][] = this.pixels;
-
-            int width = pixels.length;
-            int height = pixels[0].length;
+            ImageData pixels = this.pixels;
+            Nodes tree = this.tree;
+            int indexes[] = this.indexes = new int[pixels.width * pixels.height];
 
             Search search = new Search();
 
             // convert to indexed color
-            for (int x = width; x-- > 0; ) {
-                for (int y = height; y-- > 0; ) {
-                    int pixel = pixels[x][y];
-                    int red = (pixel >> 16) & 0xFF;
-                    int green = (pixel >> 8) & 0xFF;
-                    int blue = (pixel >> 0) & 0xFF;
-
-                    // walk the tree to find the cube containing that color
-                    Node node = root;
-                    for (; ; ) {
-                        int id = (((red > node.mid_red ? 1 : 0) << 0) |
-                                ((green > node.mid_green ? 1 : 0) << 1) |
-                                ((blue > node.mid_blue ? 1 : 0) << 2));
-                        if (node.child[id] == null) {
-                            break;
-                        }
-                        node = node.child[id];
+            for (int i = indexes.length; i-- > 0; ) {
+                int pixel = pixels.argb(i);
+                int red = (pixel >> 16) & 0xFF;
+                int green = (pixel >> 8) & 0xFF;
+                int blue = (pixel >> 0) & 0xFF;
+
+                // walk the tree to find the cube containing that color
+                int node = ROOT;
+                for (; ; ) {
+                    int id = (((red > tree.mid_red[node] ? 1 : 0) << 0) |
+                            ((green > tree.mid_green[node] ? 1 : 0) << 1) |
+                            ((blue > tree.mid_blue[node] ? 1 : 0) << 2));
+                    int child = tree.child[(node * 8) + id];
+                    if (child == 0) {
+                        break;
                     }
+                    node = child;
+                }
 
-                    if (QUICK) {
-                        // if QUICK is set, just use that
-                        // node. Strictly speaking, this isn't
-                        // necessarily best match.
-                        pixels[x][y] = node.color_number;
-                    } else {
-                        // Find the closest color.
-                        search.distance = Integer.MAX_VALUE;
-                        node.parent.closestColor(red, green, blue, search);
-                        pixels[x][y] = search.color_number;
-                    }
+                if (QUICK) {
+                    // if QUICK is set, just use that
+                    // node. Strictly speaking, this isn't
+                    // necessarily best match.
+                    indexes[i] = tree.color_number[node];
+                } else {
+                    // Find the closest color.
+                    search.distance = Integer.MAX_VALUE;
+                    closestColor(tree.parent[node], red, green, blue, search);
+                    indexes[i] = search.color_number;
                 }
             }
         }
 
         /**
-         * A single Node in the tree.
+         * Remove this child node, and make sure our parent
+         * absorbs our pixel statistics.
          */
-        static class Node {
-            Cube cube;
-
-            // parent node
-            Node parent;
-
-            // child nodes
-            Node child[];
-            int nchild;
-
-            // our index within our parent
-            int id;
-            // our level within the tree
-            int level;
-            // our color midpoint
-            int mid_red;
-            int mid_green;
-            int mid_blue;
-
-            // the pixel count for this node and all children
-            int number_pixels;
-
-            // the pixel count for this node
-            int unique;
-            // the sum of all pixels contained in this node
-            int total_red;
-            int total_green;
-            int total_blue;
-
-            // used to build the colormap
-            int color_number;
-
-            Node(Cube cube) {
-                this.cube = cube;
-                this.parent = this;
-                this.child = new Node[8];
-                this.id = 0;
-                this.level = 0;
-
-                this.number_pixels = Integer.MAX_VALUE;
-
-                this.mid_red = (MAX_RGB + 1) >> 1;
-                this.mid_green = (MAX_RGB + 1) >> 1;
-                this.mid_blue = (MAX_RGB + 1) >> 1;
+        void pruneChild(int node) {
+            Nodes tree = this.tree;
+            int parent = tree.parent[node];
+            --tree.nchild[parent];
+            tree.unique[parent] += tree.unique[node];
+            tree.total_red[parent] = add(tree.total_red[parent],
+                    tree.total_red[node]);
+            tree.total_green[parent] = add(tree.total_green[parent],
+                    tree.total_green[node]);
+            tree.total_blue[parent] = add(tree.total_blue[parent],
+                    tree.total_blue[node]);
+            tree.child[(parent * 8) + tree.id[node]] = 0;
+            --nodes;
+            if (node != ROOT) {
+                tree.release(node);
             }
+        }
 
-            Node(Node parent, int id, int level) {
-                this.cube = parent.cube;
-                this.parent = parent;
-                this.child = new Node[8];
-                this.id = id;
-                this.level = level;
-
-                // add to the cube
-                ++cube.nodes;
-                if (level == cube.depth) {
-                    ++cube.colors;
+        /**
+         * Prune the lowest layer of the tree.
+         */
+        void pruneLevel(int node) {
+            Nodes tree = this.tree;
+            if (tree.nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int child = tree.child[(node * 8) + id];
+                    if (child != 0) {
+                        pruneLevel(child);
+                    }
                 }
-
-                // add to the parent
-                ++parent.nchild;
-                parent.child[id] = this;
-
-                // figure out our midpoint
-                int bi = (1 << (MAX_TREE_DEPTH - level)) >> 1;
-                mid_red = parent.mid_red + ((id & 1) > 0 ? bi : -bi);
-                mid_green = parent.mid_green + ((id & 2) > 0 ? bi : -bi);
-                mid_blue = parent.mid_blue + ((id & 4) > 0 ? bi : -bi);
             }
-
-            /**
-             * Remove this child node, and make sure our parent
-             * absorbs our pixel statistics.
-             */
-            void pruneChild() {
-                --parent.nchild;
-                parent.unique += unique;
-                parent.total_red += total_red;
-                parent.total_green += total_green;
-                parent.total_blue += total_blue;
-                parent.child[id] = null;
-                --cube.nodes;
-                cube = null;
-                parent = null;
+            if (tree.level[node] == depth) {
+                pruneChild(node);
             }
+        }
 
-            /**
-             * Prune the lowest layer of the tree.
-             */
-            void pruneLevel() {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].pruneLevel();
-                        }
+        /**
+         * Remove any nodes that have fewer than threshold
+         * pixels. Also, as long as we're walking the tree:
+         * <p>
+         * - figure out the color with the fewest pixels
+         * - recalculate the total number of colors in the tree
+         */
+        long reduce(int node, long threshold, long next_threshold) {
+            Nodes tree = this.tree;
+            if (tree.nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int child = tree.child[(node * 8) + id];
+                    if (child != 0) {
+                        next_threshold = reduce(child, threshold,
+                                next_threshold);
                     }
                 }
-                if (level == cube.depth) {
-                    pruneChild();
-                }
             }
-
-            /**
-             * Remove any nodes that have fewer than threshold
-             * pixels. Also, as long as we're walking the tree:
-             * <p>
-             * - figure out the color with the fewest pixels
-             * - recalculate the total number of colors in the tree
-             */
-            int reduce(int threshold, int next_threshold) {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            next_threshold = child[id].reduce(threshold, next_threshold);
-                        }
-                    }
+            if (tree.number_pixels[node] <= threshold) {
+                pruneChild(node);
+            } else {
+                if (tree.unique[node] != 0) {
+                    colors++;
                 }
-                if (number_pixels <= threshold) {
-                    pruneChild();
-                } else {
-                    if (unique != 0) {
-                        cube.colors++;
-                    }
-                    if (number_pixels < next_threshold) {
-                        next_threshold = number_pixels;
-                    }
+                if (tree.number_pixels[node] < next_threshold) {
+                    next_threshold = tree.number_pixels[node];
                 }
-                return next_threshold;
             }
+            return next_threshold;
+        }
 
-            /*
-             * colormap traverses the color cube tree and notes each
-             * colormap entry. A colormap entry is any node in the
-             * color cube tree where the number of unique colors is
-             * not zero.
-             */
-            void colormap() {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].colormap();
-                        }
-                    }
-                }
-                if (unique != 0) {
-                    int r = ((total_red + (unique >> 1)) / unique);
-                    int g = ((total_green + (unique >> 1)) / unique);
-                    int b = ((total_blue + (unique >> 1)) / unique);
-                    cube.colormap[cube.colors] = (((0xFF) << 24) |
-                            ((r & 0xFF) << 16) |
-                            ((g & 0xFF) << 8) |
-                            ((b & 0xFF) << 0));
-                    color_number = cube.colors++;
-                }
-            }
+        /**
+         * Building the colormap of the reduced tree
+         */
+        void colormap() {
+            colormap = new int[colors];
 
-            /* ClosestColor traverses the color cube tree at a
-             * particular node and determines which colormap entry
-             * best represents the input color.
-             */
-            void closestColor(int red, int green, int blue, Search search) {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].closestColor(red, green, blue, search);
-                        }
-                    }
-                }
+            colors = 0;
+            colormap(ROOT);
+        }
 
-                if (unique != 0) {
-                    int color = cube.colormap[color_number];
-                    int distance = distance(color, red, green, blue);
-                    if (distance < search.distance) {
-                        search.distance = distance;
-                        search.color_number = color_number;
+        /*
+         * colormap traverses the color cube tree and notes each
+         * colormap entry. A colormap entry is any node in the
+         * color cube tree where the number of unique colors is
+         * not zero.
+         */
+        void colormap(int node) {
+            Nodes tree = this.tree;
+            if (tree.nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int child = tree.child[(node * 8) + id];
+                    if (child != 0) {
+                        colormap(child);
                     }
                 }
             }
+            int unique = tree.unique[node];
+            if (unique != 0) {
+                int r = (int) (add(tree.total_red[node], unique >> 1) / unique);
+                int g = (int) (add(tree.total_green[node], unique >> 1)
+                        / unique);
+                int b = (int) (add(tree.total_blue[node], unique >> 1)
+                        / unique);
+                colormap[colors] = (((0xFF) << 24) |
+                        ((r & 0xFF) << 16) |
+                        ((g & 0xFF) << 8) |
+                        ((b & 0xFF) << 0));
+                tree.color_number[node] = colors++;
+            }
+        }
 
-            /**
-             * Figure out the distance between this node and som color.
-             */
-            final static int distance(int color, int r, int g, int b) {
-                return (SQUARES[((color >> 16) & 0xFF) - r + MAX_RGB] +
-                        SQUARES[((color >> 8) & 0xFF) - g + MAX_RGB] +
-                        SQUARES[((color >> 0) & 0xFF) - b + MAX_RGB]);
+        /* ClosestColor traverses the color cube tree at a
+         * particular node and determines which colormap entry
+         * best represents the input color.
+         */
+        void closestColor(int node, int red, int green, int blue,
+                Search search) {
+            Nodes tree = this.tree;
+            if (tree.nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int child = tree.child[(node * 8) + id];
+                    if (child != 0) {
+                        closestColor(child, red, green, blue, search);
+                    }
+                }
             }
 
-            public String toString() {
-                StringBuffer buf = new StringBuffer();
-                if (parent == this) {
-                    buf.append("root");
-                } else {
-                    buf.append("node");
+            if (tree.unique[node] != 0) {
+                int color = colormap[tree.color_number[node]];
+                int distance = distance(color, red, green, blue);
+                if (distance < search.distance) {
+                    search.distance = distance;
+                    search.color_number = tree.color_number[node];
                 }
-                buf.append(' ');
-                buf.append(level);
-                buf.append(" [");
-                buf.append(mid_red);
-                buf.append(',');
-                buf.append(mid_green);
-                buf.append(',');
-                buf.append(mid_blue);
-                buf.append(']');
-                return new String(buf);
             }
         }
+
+        /**
+         * Figure out the distance between this node and som color.
+         */
+        final static int distance(int color, int r, int g, int b) {
+            return (SQUARES[((color >> 16) & 0xFF) - r + MAX_RGB] +
+                    SQUARES[((color >> 8) & 0xFF) - g + MAX_RGB] +
+                    SQUARES[((color >> 0) & 0xFF) - b + MAX_RGB]);
+        }
     }
 }
-
-
-
-
-
@@ -57,11 +57,11 @@ public class QuantizeOld {
     public static byte[][] samplePalette(int numberofcolors, ImageData imgd) {
         byte[][] palette = new byte[numberofcolors][4];
         for (int i = 0; i < numberofcolors; i++) {
-            int idx = (int) (Math.floor((Math.random() * imgd.data.length) / 4) * 4);
-            palette[i][0] = imgd.data[idx];
-            palette[i][1] = imgd.data[idx + 1];
-            palette[i][2] = imgd.data[idx + 2];
-            palette[i][3] = imgd.data[idx + 3];
+            int pixel = imgd.argb((int) Math.floor(Math.random() * imgd.width * imgd.height));
+            palette[i][0] = (byte) (-128 + ((pixel >>> 16) & 0xFF));
+            palette[i][1] = (byte) (-128 + ((pixel >>> 8) & 0xFF));
+            palette[i][2] = (byte) (-128 + (pixel & 0xFF));
+            palette[i][3] = (byte) (-128 + (pixel >>> 24));
         }
         return palette;
     }
@@ -0,0 +1,54 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+/**
+ * The built-in palette generators
+ *
+ * @author sdejonge
+ */
+public enum Quantizer implements PaletteGenerator {
+
+    /**
+     * Octree quantization, see {@link Quantize}
+     */
+    OCTREE {
+        @Override
+        public byte[][] generatePalette(ImageData imgd, Options options) {
+            int[] colormap = options.isPaletteOnly()
+                    ? Quantize.quantizePalette(imgd,
+                            options.numberOfColors(), options)
+                    : Quantize.quantizeImage(imgd, options.numberOfColors());
+            return Utils.toBytePalette(colormap, options.numberOfColors());
+        }
+    },
+
+    /**
+     * The old quantizer based on K-means: a palette of sampled pixels or a
+     * generated one, see {@link QuantizeOld}. Colors with too few pixels are
+     * randomized in the color quantization cycles.
+     */
+    KMEANS {
+        @Override
+        public byte[][] generatePalette(ImageData imgd, Options options) {
+            if (options.isColorSampling()) {
+                return QuantizeOld.samplePalette(options.numberOfColors(),
+                        imgd);
+            }
+            return QuantizeOld.generatePalette(options.numberOfColors());
+        }
+    },
+
+    /**
+     * Wu's variance minimization on a color histogram, see
+     * {@link WuQuantizer}
+     */
+    WU {
+        @Override
+        public byte[][] generatePalette(ImageData imgd, Options options) {
+            return Utils.toBytePalette(WuQuantizer.quantize(imgd,
+                    options.numberOfColors(), options),
+                    options.numberOfColors());
+        }
+    }
+}
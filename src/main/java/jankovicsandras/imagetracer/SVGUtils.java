@@ -3,6 +3,7 @@ package jankovicsandras.imagetracer;
 import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
 
@@ -65,12 +66,14 @@ public class SVGUtils {
                 .append(colorStr)
                 .append("d=\"");
 
-        segment.scale(options.scale());
-
+        // Scaling while iterating, the segment is not modified so it can be
+        // rendered again with other options
         Shape shape = segment.shape();
         if (shape instanceof Path2D) {
             Path2D path = (Path2D) shape;
-            PathIterator iterator = path.getPathIterator(null);
+            PathIterator iterator = path.getPathIterator(
+                    AffineTransform.getScaleInstance(options.scale(),
+                            options.scale()));
             double values[] = new double[6];
             double prevX = 0;
             double prevY = 0;
@@ -2,6 +2,8 @@ package jankovicsandras.imagetracer;
 
 import jankovicsandras.imagetracer.ImageTracer.ImageData;
 
+import java.util.concurrent.RecursiveAction;
+
 public class SelectiveBlur {
 
     /**
@@ -14,6 +16,26 @@ public class SelectiveBlur {
             {0.063327, 0.093095, 0.122589, 0.144599, 0.152781, 0.144599, 0.122589, 0.093095, 0.063327},
             {0.049692, 0.069304, 0.089767, 0.107988, 0.120651, 0.125194, 0.120651, 0.107988, 0.089767, 0.069304, 0.049692}};
 
+    // fractional bits of the fixed point kernel weights
+    private static final int WEIGHT_BITS = 16;
+
+    /**
+     * The Gaussian kernels as fixed point weights, gks * 2^WEIGHT_BITS
+     */
+    static final int[][] FIXED_GKS = fixed(gks);
+
+    private static int[][] fixed(double[][] kernels) {
+        int[][] fixed = new int[kernels.length][];
+        for (int r = 0; r < kernels.length; r++) {
+            fixed[r] = new int[kernels[r].length];
+            for (int k = 0; k < kernels[r].length; k++) {
+                fixed[r][k] = (int) Math.round(kernels[r][k]
+                        * (1 << WEIGHT_BITS));
+            }
+        }
+        return fixed;
+    }
+
     /**
      * Selective Gaussian blur for preprocessing
      *
@@ -23,111 +45,435 @@ public class SelectiveBlur {
      * @return
      */
     static ImageData blur(ImageData imgd, double rad, double del) {
-        int i, j, k, d, idx;
-        double racc, gacc, bacc, aacc, wacc;
-        ImageData imgd2 = new ImageData(imgd.width, imgd.height,
-                new byte[imgd.width * imgd.height * 4]);
+        Options options = new Options();
+        options.setBlurRadius(rad);
+        options.setBlurDelta(del);
+        return blur(imgd, options, null);
+    }
 
+    /**
+     * Selective Gaussian blur for preprocessing, with the blurRadius,
+     * blurMode, blurDelta and threads of options. Bands of rows are blurred
+     * in parallel.
+     *
+     * @param imgd
+     * @param options
+     * @param kernels Vector API kernels, null for the scalar loops
+     * @return
+     */
+    static ImageData blur(ImageData imgd, Options options,
+            PixelKernels kernels) {
         // radius and delta limits, this kernel
-        int radius = (int) Math.floor(rad);
+        int radius = (int) Math.floor(options.blurRadius());
         if (radius < 1) {
             return imgd;
         }
+        int delta = (int) Math.abs(options.blurDelta());
+        if (delta > 1024) {
+            delta = 1024;
+        }
+        if (options.blurMode() == BlurMode.BOX) {
+            return boxBlur(imgd, options.blurRadius() * 0.75, delta, options);
+        }
         if (radius > 5) {
             radius = 5;
         }
-        int delta = (int) Math.abs(del);
-        if (delta > 1024) {
-            delta = 1024;
+
+        ImageData imgd2 = new ImageData(imgd.width, imgd.height,
+                new int[imgd.width * imgd.height]);
+        // the halo rows of a band are blurred horizontally twice, so the
+        // bands are kept a lot higher than the kernel
+        int band = Math.max(radius * 8, ColorQuantizationTask.band(imgd,
+                Utils.parallelism(options)));
+        Utils.invoke(new BlurTask(imgd, imgd2.pixels, radius,
+                FIXED_GKS[radius - 1], delta, kernels, 0, imgd.height, band),
+                options);
+        return imgd2;
+    }
+
+    /**
+     * Blurring a band of rows: the rows of the band and the rows within the
+     * radius above and below it are blurred horizontally into a scratch
+     * buffer of the band, then the vertical blur of the scratch rows and the
+     * selectivity are done in one pass into the output. Every output pixel
+     * is written by exactly one band, the sums are exact integers, so the
+     * result does not depend on the bands or the threads.
+     */
+    private static class BlurTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ImageData imgd;
+        private final int[] out;
+        private final int radius, delta, rowStart, rowEnd, band;
+        private final int[] weights;
+        private final PixelKernels kernels;
+
+        BlurTask(ImageData imgd, int[] out, int radius, int[] weights,
+                int delta, PixelKernels kernels, int rowStart, int rowEnd,
+                int band) {
+            this.imgd = imgd;
+            this.out = out;
+            this.radius = radius;
+            this.weights = weights;
+            this.delta = delta;
+            this.kernels = kernels;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.band = band;
         }
-        double[] thisgk = gks[radius - 1];
-
-        // loop through all pixels, horizontal blur
-        for (j = 0; j < imgd.height; j++) {
-            for (i = 0; i < imgd.width; i++) {
-
-                racc = 0;
-                gacc = 0;
-                bacc = 0;
-                aacc = 0;
-                wacc = 0;
-                // gauss kernel loop
-                for (k = -radius; k < (radius + 1); k++) {
-                    // add weighted color values
-                    if (((i + k) > 0) && ((i + k) < imgd.width)) {
-                        idx = ((j * imgd.width) + i + k) * 4;
-                        racc += imgd.data[idx] * thisgk[k + radius];
-                        gacc += imgd.data[idx + 1] * thisgk[k + radius];
-                        bacc += imgd.data[idx + 2] * thisgk[k + radius];
-                        aacc += imgd.data[idx + 3] * thisgk[k + radius];
-                        wacc += thisgk[k + radius];
+
+        @Override
+        protected void compute() {
+            if ((rowEnd - rowStart) > band) {
+                int mid = (rowStart + rowEnd) >>> 1;
+                invokeAll(new BlurTask(imgd, out, radius, weights, delta,
+                                kernels, rowStart, mid, band),
+                        new BlurTask(imgd, out, radius, weights, delta,
+                                kernels, mid, rowEnd, band));
+                return;
+            }
+            int width = imgd.width;
+            int first = Math.max(0, rowStart - radius);
+            int last = Math.min(imgd.height, rowEnd + radius);
+            int[] scratch = new int[(last - first) * width];
+            int[][] acc = new int[4][width];
+
+            // horizontal blur into the scratch rows
+            int[] row = imgd.pixels != null ? null : new int[width];
+            for (int j = first; j < last; j++) {
+                if (row == null) {
+                    horizontal(imgd.pixels, j * width, width, scratch,
+                            (j - first) * width, acc);
+                } else {
+                    // other rasters are unpacked row by row
+                    for (int i = 0; i < width; i++) {
+                        row[i] = imgd.argb((j * width) + i);
                     }
+                    horizontal(row, 0, width, scratch, (j - first) * width,
+                            acc);
                 }
-                // The new pixel
-                idx = ((j * imgd.width) + i) * 4;
-                imgd2.data[idx] = (byte) Math.floor(racc / wacc);
-                imgd2.data[idx + 1] = (byte) Math.floor(gacc / wacc);
-                imgd2.data[idx + 2] = (byte) Math.floor(bacc / wacc);
-                imgd2.data[idx + 3] = (byte) Math.floor(aacc / wacc);
-
-            }
-        }
-
-        // copying the half blurred imgd2
-        byte[] himgd = imgd2.data.clone();
-
-        // loop through all pixels, vertical blur
-        for (j = 0; j < imgd.height; j++) {
-            for (i = 0; i < imgd.width; i++) {
-
-                racc = 0;
-                gacc = 0;
-                bacc = 0;
-                aacc = 0;
-                wacc = 0;
-                // gauss kernel loop
-                for (k = -radius; k < (radius + 1); k++) {
-                    // add weighted color values
-                    if (((j + k) > 0) && ((j + k) < imgd.height)) {
-                        idx = (((j + k) * imgd.width) + i) * 4;
-                        racc += himgd[idx] * thisgk[k + radius];
-                        gacc += himgd[idx + 1] * thisgk[k + radius];
-                        bacc += himgd[idx + 2] * thisgk[k + radius];
-                        aacc += himgd[idx + 3] * thisgk[k + radius];
-                        wacc += thisgk[k + radius];
+            }
+
+            // vertical blur and selectivity
+            for (int j = rowStart; j < rowEnd; j++) {
+                int offset = j * width;
+                vertical(scratch, first, j, width, acc);
+                for (int i = 0; i < width; i++) {
+                    // d is the difference between the blurred and the
+                    // original pixel
+                    int pixel = imgd.argb(offset + i);
+                    int blurred = out[offset + i];
+                    // selective blur: if d>delta, put the original pixel back
+                    if (difference(blurred, pixel) > delta) {
+                        out[offset + i] = pixel;
                     }
                 }
-                // The new pixel
-                idx = ((j * imgd.width) + i) * 4;
-                imgd2.data[idx] = (byte) Math.floor(racc / wacc);
-                imgd2.data[idx + 1] = (byte) Math.floor(gacc / wacc);
-                imgd2.data[idx + 2] = (byte) Math.floor(bacc / wacc);
-                imgd2.data[idx + 3] = (byte) Math.floor(aacc / wacc);
+            }
+        }
 
+        /**
+         * Horizontally blurred row. The pixels whose kernel is cut by the
+         * border are averaged over the weights that are inside.
+         */
+        private void horizontal(int[] pixels, int offset, int width,
+                int[] dest, int destOffset, int[][] acc) {
+            int length = width - (2 * radius);
+            if (length > 0) {
+                weightedSum(pixels, offset, 1, length, acc);
+                int wsum = sum(weights, 0, weights.length);
+                for (int t = 0; t < length; t++) {
+                    dest[destOffset + radius + t] = pack(acc, t, wsum);
+                }
+            }
+            for (int i = 0; i < width; i++) {
+                if ((i >= radius) && (i < (width - radius))) {
+                    continue;
+                }
+                int from = Math.max(-radius, -i);
+                int to = Math.min(radius, width - 1 - i);
+                edgeSum(pixels, offset + i, 1, from, to, acc);
+                dest[destOffset + i] = pack(acc, 0, sum(weights,
+                        from + radius, to + radius + 1));
+            }
+        }
+
+        /**
+         * Vertically blurred row j of the scratch rows from row first on,
+         * into the output
+         */
+        private void vertical(int[] scratch, int first, int j, int width,
+                int[][] acc) {
+            int offset = j * width;
+            int height = imgd.height;
+            if (((j - radius) >= 0) && ((j + radius) < height)) {
+                weightedSum(scratch, (j - radius - first) * width, width,
+                        width, acc);
+                int wsum = sum(weights, 0, weights.length);
+                for (int i = 0; i < width; i++) {
+                    out[offset + i] = pack(acc, i, wsum);
+                }
+                return;
+            }
+            int from = Math.max(-radius, -j);
+            int to = Math.min(radius, height - 1 - j);
+            int wsum = sum(weights, from + radius, to + radius + 1);
+            for (int i = 0; i < width; i++) {
+                edgeSum(scratch, ((j - first) * width) + i, width, from, to,
+                        acc);
+                out[offset + i] = pack(acc, 0, wsum);
+            }
+        }
+
+        private void weightedSum(int[] pixels, int offset, int stride,
+                int length, int[][] acc) {
+            if (kernels != null) {
+                kernels.weightedSum(pixels, offset, stride, weights, length,
+                        acc);
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                int r = 0, g = 0, b = 0, a = 0;
+                for (int k = 0; k < weights.length; k++) {
+                    int pixel = pixels[offset + i + (k * stride)];
+                    r += ((pixel >>> 16) & 0xFF) * weights[k];
+                    g += ((pixel >>> 8) & 0xFF) * weights[k];
+                    b += (pixel & 0xFF) * weights[k];
+                    a += (pixel >>> 24) * weights[k];
+                }
+                acc[0][i] = r;
+                acc[1][i] = g;
+                acc[2][i] = b;
+                acc[3][i] = a;
+            }
+        }
+
+        /**
+         * Weighted sum of the samples from - to of one pixel into acc[c][0]
+         */
+        private void edgeSum(int[] pixels, int center, int stride, int from,
+                int to, int[][] acc) {
+            int r = 0, g = 0, b = 0, a = 0;
+            for (int k = from; k <= to; k++) {
+                int pixel = pixels[center + (k * stride)];
+                int weight = weights[k + radius];
+                r += ((pixel >>> 16) & 0xFF) * weight;
+                g += ((pixel >>> 8) & 0xFF) * weight;
+                b += (pixel & 0xFF) * weight;
+                a += (pixel >>> 24) * weight;
+            }
+            acc[0][0] = r;
+            acc[1][0] = g;
+            acc[2][0] = b;
+            acc[3][0] = a;
+        }
+    }
+
+    /**
+     * Selective blur with three box filters in each direction instead of
+     * the Gaussian kernel. Every channel is filtered in a plane with 8
+     * fractional bits, the rows and then the columns with running sums, so
+     * the cost per pixel is the same for every radius.
+     *
+     * @param imgd
+     * @param sigma   standard deviation of the Gaussian to approximate
+     * @param delta
+     * @param options
+     * @return
+     */
+    private static ImageData boxBlur(ImageData imgd, double sigma, int delta,
+            Options options) {
+        int width = imgd.width, height = imgd.height;
+        int length = width * height;
+        int parallelism = Utils.parallelism(options);
+        int rows = ColorQuantizationTask.band(imgd, parallelism);
+        int columns = Math.max(64, width / (parallelism * 4));
+        int[] radii = boxRadii(sigma, 3);
+        int[] out = new int[length];
+        int[] plane = new int[length];
+        int[] temp = new int[length];
+
+        // the channels in the order of the shifts: A, R, G, B
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            for (int idx = 0; idx < length; idx++) {
+                plane[idx] = ((imgd.argb(idx) >>> shift) & 0xFF) << 8;
+            }
+            for (int vertical = 0; vertical < 2; vertical++) {
+                for (int radius : radii) {
+                    if (radius < 1) {
+                        continue;
+                    }
+                    Utils.invoke(new BoxTask(plane, temp, width, height,
+                            radius, vertical == 1, 0,
+                            vertical == 1 ? width : height,
+                            vertical == 1 ? columns : rows), options);
+                    int[] swap = plane;
+                    plane = temp;
+                    temp = swap;
+                }
+            }
+            for (int idx = 0; idx < length; idx++) {
+                out[idx] |= ((plane[idx] + 128) >> 8) << shift;
             }
         }
 
         // Selective blur: loop through all pixels
-        for (j = 0; j < imgd.height; j++) {
-            for (i = 0; i < imgd.width; i++) {
-
-                idx = ((j * imgd.width) + i) * 4;
-                // d is the difference between the blurred and the
-                // original pixel
-                d = Math.abs(imgd2.data[idx] - imgd.data[idx])
-                        + Math.abs(imgd2.data[idx + 1] - imgd.data[idx + 1]) +
-                        Math.abs(imgd2.data[idx + 2] - imgd.data[idx + 2])
-                        + Math.abs(imgd2.data[idx + 3] - imgd.data[idx + 3]);
-                // selective blur: if d>delta, put the original pixel back
-                if (d > delta) {
-                    imgd2.data[idx] = imgd.data[idx];
-                    imgd2.data[idx + 1] = imgd.data[idx + 1];
-                    imgd2.data[idx + 2] = imgd.data[idx + 2];
-                    imgd2.data[idx + 3] = imgd.data[idx + 3];
+        for (int idx = 0; idx < length; idx++) {
+            // d is the difference between the blurred and the
+            // original pixel
+            int pixel = imgd.argb(idx);
+            // selective blur: if d>delta, put the original pixel back
+            if (difference(out[idx], pixel) > delta) {
+                out[idx] = pixel;
+            }
+        }
+        return new ImageData(width, height, out);
+    }
+
+    /**
+     * The radii of n box filters that together are close to a Gaussian,
+     * sizes that differ by 2 with the same variance as the Gaussian
+     *
+     * @param sigma
+     * @param n
+     * @return
+     */
+    static int[] boxRadii(double sigma, int n) {
+        double variance = 12 * sigma * sigma;
+        int lower = (int) Math.floor(Math.sqrt((variance / n) + 1));
+        if ((lower % 2) == 0) {
+            lower--;
+        }
+        // the first m boxes have the lower size, the rest 2 more
+        long m = Math.round((variance - (n * lower * lower) - (4 * n * lower)
+                - (3 * n)) / ((-4.0 * lower) - 4));
+        int[] radii = new int[n];
+        for (int i = 0; i < n; i++) {
+            int size = i < m ? lower : lower + 2;
+            radii[i] = (size - 1) / 2;
+        }
+        return radii;
+    }
+
+    /**
+     * One box filter pass over a range of rows or columns of a plane. The
+     * box is cut by the border, then the mean is over the samples that are
+     * inside.
+     */
+    private static class BoxTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] src, dest;
+        private final int width, height, radius, start, end, band;
+        private final boolean vertical;
+
+        BoxTask(int[] src, int[] dest, int width, int height, int radius,
+                boolean vertical, int start, int end, int band) {
+            this.src = src;
+            this.dest = dest;
+            this.width = width;
+            this.height = height;
+            this.radius = radius;
+            this.vertical = vertical;
+            this.start = start;
+            this.end = end;
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+            if ((end - start) > band) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new BoxTask(src, dest, width, height, radius,
+                                vertical, start, mid, band),
+                        new BoxTask(src, dest, width, height, radius,
+                                vertical, mid, end, band));
+            } else if (vertical) {
+                columns();
+            } else {
+                for (int j = start; j < end; j++) {
+                    row(j * width);
                 }
             }
         }
 
-        return imgd2;
+        private void row(int base) {
+            int last = Math.min(radius, width - 1);
+            int sum = 0, count = last + 1;
+            for (int i = 0; i <= last; i++) {
+                sum += src[base + i];
+            }
+            for (int i = 0; i < width; i++) {
+                dest[base + i] = (sum + (count >> 1)) / count;
+                if ((i + radius + 1) < width) {
+                    sum += src[base + i + radius + 1];
+                    count++;
+                }
+                if ((i - radius) >= 0) {
+                    sum -= src[base + i - radius];
+                    count--;
+                }
+            }
+        }
+
+        // the running sums of the columns move down together, row by row
+        private void columns() {
+            int[] sums = new int[end - start];
+            int last = Math.min(radius, height - 1);
+            int count = last + 1;
+            for (int j = 0; j <= last; j++) {
+                for (int i = start; i < end; i++) {
+                    sums[i - start] += src[(j * width) + i];
+                }
+            }
+            for (int j = 0; j < height; j++) {
+                int row = j * width;
+                for (int i = start; i < end; i++) {
+                    dest[row + i] = (sums[i - start] + (count >> 1)) / count;
+                }
+                if ((j + radius + 1) < height) {
+                    int add = (j + radius + 1) * width;
+                    for (int i = start; i < end; i++) {
+                        sums[i - start] += src[add + i];
+                    }
+                    count++;
+                }
+                if ((j - radius) >= 0) {
+                    int remove = (j - radius) * width;
+                    for (int i = start; i < end; i++) {
+                        sums[i - start] -= src[remove + i];
+                    }
+                    count--;
+                }
+            }
+        }
+    }
+
+    private static int sum(int[] weights, int from, int to) {
+        int sum = 0;
+        for (int k = from; k < to; k++) {
+            sum += weights[k];
+        }
+        return sum;
+    }
+
+    /**
+     * Packing the weighted sums of a pixel to an ARGB pixel, the sums are
+     * divided by the sum of the weights and rounded down
+     */
+    private static int pack(int[][] acc, int i, int wsum) {
+        return ((acc[3][i] / wsum) << 24) | ((acc[0][i] / wsum) << 16)
+                | ((acc[1][i] / wsum) << 8) | (acc[2][i] / wsum);
+    }
+
+    /**
+     * Rectilinear RGBA distance of two ARGB pixels
+     */
+    static int difference(int p1, int p2) {
+        return Math.abs(((p1 >>> 16) & 0xFF) - ((p2 >>> 16) & 0xFF))
+                + Math.abs(((p1 >>> 8) & 0xFF) - ((p2 >>> 8) & 0xFF))
+                + Math.abs((p1 & 0xFF) - (p2 & 0xFF))
+                + Math.abs((p1 >>> 24) - (p2 >>> 24));
     }
 }
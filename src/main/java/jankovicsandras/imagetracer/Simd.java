@@ -0,0 +1,30 @@
+package jankovicsandras.imagetracer;
+
+/**
+ * Access to the Vector API kernels. This is the Java 8 version, there are no
+ * kernels and the scalar loops are used. The multi-release jar has a Java 17
+ * version of this class in META-INF/versions/17.
+ *
+ * @author sdejonge
+ */
+class Simd {
+
+    /**
+     * The kernels, or null if they are not available on this JVM
+     *
+     * @return
+     */
+    static PixelKernels kernels() {
+        return null;
+    }
+
+    /**
+     * The kernels if they are enabled in options and available
+     *
+     * @param options
+     * @return
+     */
+    static PixelKernels kernels(Options options) {
+        return options.isSimd() ? kernels() : null;
+    }
+}
@@ -2,59 +2,200 @@ package jankovicsandras.imagetracer;
 
 import jankovicsandras.imagetracer.ImageTracer.ImageData;
 
-import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * @author sdejonge
  */
 public class Utils {
 
+    // thread pools for the threads option, besides the common pool: one
+    // per thread count up to the number of cores, so there are never more
+    // than that many
+    private static final Map<Integer, ForkJoinPool> POOLS =
+            new ConcurrentHashMap<>();
+    private static final int MAX_POOLED_THREADS =
+            Runtime.getRuntime().availableProcessors();
+
     /**
-     * The bitshift method in loadImageData creates signed bytes where -1 -> 255 unsigned ; -128 -> 128 unsigned ;
-     * 127 -> 127 unsigned ; 0 -> 0 unsigned ; These will be converted to -128 (representing 0 unsigned) ...
-     * 127 (representing 255 unsigned) and tosvgcolorstr will add +128 to create RGB values 0..255
+     * The number of threads to use for the threads option: 0 means every
+     * core
      *
-     * @param b
+     * @param options
      * @return
      */
-    public static byte byteTrans(byte b) {
-        if (b < 0) {
-            return (byte) (b + 128);
-        } else {
-            return (byte) (b - 128);
-        }
-    }
-
-    public static byte[][] getPalette(Options options, BufferedImage image,
-            ImageData imageData, boolean old) {
-        byte[][] bytePalette;
-        if (old) {
-            if (options.isColorSampling()) {
-                bytePalette = QuantizeOld.samplePalette(options.numberOfColors(),
-                        imageData);
-            } else {
-                bytePalette = QuantizeOld.generatePalette(options.numberOfColors());
-            }
-        } else {
-            int[][] pixels = new int[image.getWidth()][image.getHeight()];
+    public static int parallelism(Options options) {
+        return options.threads() > 0 ? options.threads()
+                : ForkJoinPool.getCommonPoolParallelism();
+    }
 
-            for (int i = 0; i < image.getWidth(); i++) {
-                for (int j = 0; j < image.getHeight(); j++) {
-                    pixels[i][j] = image.getRGB(i, j);
-                }
+    /**
+     * Running a fork/join task with the threads option: on the common pool
+     * by default, otherwise on a pool of its own with that many threads.
+     * With 1 thread the task runs on a single thread pool rather than in
+     * the calling thread, a task invoked outside of a pool would fork its
+     * subtasks to the common pool. The pools of up to a thread per core
+     * are kept, a pool of more threads is shut down after the task.
+     *
+     * @param task
+     * @param options
+     * @param <T>
+     * @return
+     */
+    public static <T> T invoke(ForkJoinTask<T> task, Options options) {
+        if (options.threads() <= 0) {
+            return ForkJoinPool.commonPool().invoke(task);
+        }
+        if (options.threads() <= MAX_POOLED_THREADS) {
+            return POOLS.computeIfAbsent(options.threads(),
+                    ForkJoinPool::new).invoke(task);
+        }
+        ForkJoinPool pool = new ForkJoinPool(options.threads());
+        try {
+            return pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The initial palette of the color quantization: a copy of the palette
+     * in options or of the palette of the palette group, otherwise from the
+     * palette generator in options. With sampling, only the sample of the
+     * image is given to the generator.
+     *
+     * @param options
+     * @param imageData
+     * @return
+     */
+    public static byte[][] getPalette(Options options, ImageData imageData) {
+        if (options.palette() != null) {
+            return copyPalette(options.palette());
+        }
+        if (options.paletteGroup() != null) {
+            return copyPalette(PaletteCache.get(options.paletteGroup(),
+                    () -> generatePalette(options, imageData)));
+        }
+        return generatePalette(options, imageData);
+    }
+
+    private static byte[][] generatePalette(Options options,
+            ImageData imageData) {
+        ImageData sample = PixelSampler.sample(imageData,
+                PixelSampler.stride(imageData, options));
+        return options.paletteGenerator().generatePalette(sample, options);
+    }
+
+    /**
+     * Copying a palette, the color quantization averages the colors of its
+     * palette in place
+     *
+     * @param palette
+     * @return
+     */
+    public static byte[][] copyPalette(byte[][] palette) {
+        byte[][] copy = new byte[palette.length][];
+        for (int k = 0; k < palette.length; k++) {
+            copy[k] = palette[k].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Reading a palette file: one color per line, as hexadecimal RRGGBB or
+     * RRGGBBAA with an optional #, or as decimal R G B or R G B A separated
+     * by spaces or commas. Empty lines are skipped.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static byte[][] readPalette(String file) throws IOException {
+        List<byte[]> colors = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
             }
-            int[] palette = Quantize.quantizeImage(pixels,
-                    options.numberOfColors());
-            bytePalette = new byte[options.numberOfColors()][4];
-
-            for (int i = 0; i < palette.length; i++) {
-                Color c = new Color(palette[i]);
-                bytePalette[i][0] = (byte) c.getRed();
-                bytePalette[i][1] = (byte) c.getGreen();
-                bytePalette[i][2] = (byte) c.getBlue();
-                bytePalette[i][3] = 0;
+            String[] tokens = line.split("[\\s,]+");
+            int[] rgba = {0, 0, 0, 255};
+            try {
+                if (tokens.length == 1) {
+                    String hex = line.startsWith("#") ? line.substring(1)
+                            : line;
+                    if ((hex.length() != 6) && (hex.length() != 8)) {
+                        throw new NumberFormatException(hex);
+                    }
+                    for (int c = 0; c < (hex.length() / 2); c++) {
+                        rgba[c] = Integer.parseInt(
+                                hex.substring(c * 2, (c * 2) + 2), 16);
+                    }
+                } else if ((tokens.length == 3) || (tokens.length == 4)) {
+                    for (int c = 0; c < tokens.length; c++) {
+                        rgba[c] = Integer.parseInt(tokens[c]);
+                        if ((rgba[c] < 0) || (rgba[c] > 255)) {
+                            throw new NumberFormatException(tokens[c]);
+                        }
+                    }
+                } else {
+                    throw new NumberFormatException(line);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid color in palette file " + file
+                        + ": " + line, e);
             }
+            colors.add(new byte[]{(byte) (-128 + rgba[0]),
+                    (byte) (-128 + rgba[1]), (byte) (-128 + rgba[2]),
+                    (byte) (-128 + rgba[3])});
+        }
+        if (colors.isEmpty()) {
+            throw new IOException("No colors in palette file " + file);
+        }
+        return colors.toArray(new byte[0][]);
+    }
+
+    /**
+     * The initial palette of the color quantization, like
+     * {@link #getPalette(Options, ImageData)} with the old quantizer or the
+     * octree quantizer as the quantizer of options
+     *
+     * @param options
+     * @param imageData
+     * @param old
+     * @return
+     */
+    public static byte[][] getPalette(Options options, ImageData imageData,
+            boolean old) {
+        Options quantizerOptions = new Options(options);
+        quantizerOptions.setOldQuantizer(false);
+        quantizerOptions.setQuantizer(old ? Quantizer.KMEANS
+                : Quantizer.OCTREE);
+        return getPalette(quantizerOptions, imageData);
+    }
+
+    /**
+     * Converting ARGB colors to a palette of numberOfColors colors, see
+     * {@link PaletteGenerator}. Missing colors are left 0.
+     *
+     * @param colormap
+     * @param numberOfColors
+     * @return
+     */
+    public static byte[][] toBytePalette(int[] colormap, int numberOfColors) {
+        byte[][] bytePalette = new byte[numberOfColors][4];
+        for (int i = 0; i < Math.min(colormap.length, numberOfColors); i++) {
+            bytePalette[i][0] = (byte) (-128 + ((colormap[i] >>> 16) & 0xFF));
+            bytePalette[i][1] = (byte) (-128 + ((colormap[i] >>> 8) & 0xFF));
+            bytePalette[i][2] = (byte) (-128 + (colormap[i] & 0xFF));
+            bytePalette[i][3] = (byte) (-128 + (colormap[i] >>> 24));
         }
         return bytePalette;
     }
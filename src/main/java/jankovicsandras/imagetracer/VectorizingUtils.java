@@ -2,6 +2,7 @@ package jankovicsandras.imagetracer;
 
 import jankovicsandras.imagetracer.ImageTracer.ImageData;
 import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+import jankovicsandras.imagetracer.ImageTracer.QuantizationStats;
 
 import java.awt.*;
 import java.awt.geom.Line2D;
@@ -9,6 +10,7 @@ import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.QuadCurve2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
@@ -19,6 +21,193 @@ import java.util.TreeMap;
  */
 public class VectorizingUtils {
 
+    // histogram quantization falls back to the pixel loop above this many
+    // unique colors
+    private static final int MAX_HISTOGRAM_COLORS = 1 << 20;
+
+    /**
+     * 1. Color quantization of an image with few unique colors: the colors
+     * of the histogram, in order of their first occurrence, are the palette,
+     * and the pixels are indexed in one pass without clustering
+     *
+     * @param imgd
+     * @param histogram the histogram of imgd
+     * @return
+     */
+    public static IndexedImage exactColorquantization(ImageData imgd,
+            ColorHistogram histogram) {
+        byte[][] palette = new byte[histogram.size][4];
+        int[] indexes = new int[histogram.size];
+        for (int k = 0; k < histogram.size; k++) {
+            int color = histogram.colors[k];
+            palette[k][0] = (byte) (-128 + ((color >>> 16) & 0xFF));
+            palette[k][1] = (byte) (-128 + ((color >>> 8) & 0xFF));
+            palette[k][2] = (byte) (-128 + (color & 0xFF));
+            palette[k][3] = (byte) (-128 + (color >>> 24));
+            indexes[k] = k;
+        }
+
+        IndexedImage indexedImage = new IndexedImage(imgd.width, imgd.height,
+                palette);
+        writeIndexes(imgd, histogram, indexes, indexedImage);
+
+        QuantizationStats stats = new QuantizationStats();
+        stats.histogramColors = histogram.size;
+        stats.exactPalette = true;
+        indexedImage.stats = stats;
+        return indexedImage;
+    }
+
+    /**
+     * 1. Color quantization of a palette image: the colors of the palette
+     * that are used are the palette, and the color indexes are copied
+     *
+     * @param imgd      ImageData with indexes
+     * @param maxColors
+     * @return the IndexedImage, or null if more than maxColors colors of the
+     * palette are used
+     */
+    public static IndexedImage indexedColorquantization(ImageData imgd,
+            int maxColors) {
+        int length = imgd.width * imgd.height;
+        boolean[] used = new boolean[imgd.indexColors.length];
+        for (int i = 0; i < length; i++) {
+            used[imgd.indexes[i] & 0xFF] = true;
+        }
+
+        // palette index of every used color index
+        int[] remap = new int[imgd.indexColors.length];
+        int count = 0;
+        for (int c = 0; c < used.length; c++) {
+            if (used[c]) {
+                remap[c] = count++;
+            }
+        }
+        if (count > maxColors) {
+            return null;
+        }
+
+        byte[][] palette = new byte[count][4];
+        for (int c = 0; c < used.length; c++) {
+            if (used[c]) {
+                int color = imgd.indexColors[c];
+                palette[remap[c]][0] = (byte) (-128 + ((color >>> 16) & 0xFF));
+                palette[remap[c]][1] = (byte) (-128 + ((color >>> 8) & 0xFF));
+                palette[remap[c]][2] = (byte) (-128 + (color & 0xFF));
+                palette[remap[c]][3] = (byte) (-128 + (color >>> 24));
+            }
+        }
+
+        IndexedImage indexedImage = new IndexedImage(imgd.width, imgd.height,
+                palette);
+        int stride = indexedImage.stride();
+        indexedImage.resetColorBounds();
+        for (int j = 0; j < imgd.height; j++) {
+            for (int i = 0; i < imgd.width; i++) {
+                int index = remap[imgd.indexes[(j * imgd.width) + i] & 0xFF];
+                indexedImage.set(((j + 1) * stride) + i + 1, index);
+                indexedImage.include(index, i, j);
+            }
+        }
+
+        QuantizationStats stats = new QuantizationStats();
+        stats.histogramColors = count;
+        stats.exactPalette = true;
+        indexedImage.stats = stats;
+        return indexedImage;
+    }
+
+    /**
+     * Writing the palette index of every pixel to the indexed image, and
+     * recording the pixel counts and bounding boxes of the colors
+     *
+     * @param imgd
+     * @param histogram the histogram of imgd
+     * @param indexes   the palette index of every histogram entry
+     * @param indexed
+     */
+    private static void writeIndexes(ImageData imgd, ColorHistogram histogram,
+            int[] indexes, IndexedImage indexed) {
+        int stride = indexed.stride();
+        indexed.resetColorBounds();
+        for (int j = 0; j < imgd.height; j++) {
+            for (int i = 0; i < imgd.width; i++) {
+                int index = indexes[histogram.indexOf(
+                        imgd.argb((j * imgd.width) + i))];
+                indexed.set(((j + 1) * stride) + i + 1, index);
+                indexed.include(index, i, j);
+            }
+        }
+    }
+
+    /**
+     * Mean distance per pixel
+     */
+    private static double mean(long distance, ImageData imgd) {
+        return (double) distance / Math.max(1, imgd.width * imgd.height);
+    }
+
+    /**
+     * Largest change of a color component between the signed palette and the
+     * unsigned palette of the previous pass
+     *
+     * @param palette
+     * @param pal
+     * @return
+     */
+    private static int paletteShift(byte[][] palette, int[][] pal) {
+        int shift = 0;
+        for (int k = 0; k < palette.length; k++) {
+            for (int c = 0; c < 4; c++) {
+                shift = Math.max(shift,
+                        Math.abs((128 + palette[k][c]) - pal[k][c]));
+            }
+        }
+        return shift;
+    }
+
+    /**
+     * One clustering step over the unique colors of a histogram, every color
+     * weighted by its pixel count. The sums are the same as those of a pass
+     * over all pixels.
+     *
+     * @param histogram
+     * @param pal       unsigned palette colors
+     * @param indexes   closest palette color of every histogram entry, updated
+     * @param kernels   Vector API kernels, null for the scalar loop
+     * @return
+     */
+    private static ColorQuantizationTask.Accumulator histogramClustering(
+            ColorHistogram histogram, int[][] pal, int[] indexes,
+            PixelKernels kernels) {
+        ColorQuantizationTask.Accumulator acc =
+                new ColorQuantizationTask.Accumulator(pal.length);
+        long[][] paletteacc = acc.paletteacc;
+        int[] nearest = null;
+        if (kernels != null) {
+            nearest = new int[histogram.size];
+            kernels.nearest(histogram.colors, 0, histogram.size, pal, nearest);
+        }
+        for (int e = 0; e < histogram.size; e++) {
+            int color = histogram.colors[e];
+            long count = histogram.counts[e];
+            int ci = nearest != null ? nearest[e]
+                    : ColorQuantizationTask.nearest(pal, color);
+            if (indexes[e] != ci) {
+                acc.reassigned += count;
+                indexes[e] = ci;
+            }
+            paletteacc[ci][0] += ((color >>> 16) & 0xFF) * count;
+            paletteacc[ci][1] += ((color >>> 8) & 0xFF) * count;
+            paletteacc[ci][2] += (color & 0xFF) * count;
+            paletteacc[ci][3] += (color >>> 24) * count;
+            paletteacc[ci][4] += count;
+            acc.distance += ColorQuantizationTask.distance(pal[ci], color)
+                    * count;
+        }
+        return acc;
+    }
+
     /**
      * 1. Color quantization repeated "cycles" times, based on K-means
      * clustering
@@ -34,29 +223,50 @@ public class VectorizingUtils {
     public static IndexedImage colorquantization(ImageData imgd,
             byte[][] palette, Options options) {
 
+        PixelKernels kernels = Simd.kernels(options);
+
         // Selective Gaussian blur preprocessing
         if (options.blurRadius() > 0) {
-            imgd = SelectiveBlur.blur(imgd, options.blurRadius(),
-                    options.blurDelta());
+            imgd = SelectiveBlur.blur(imgd, options, kernels);
         }
 
-        // Creating indexed color array arr which has a boundary filled with
-        // -1 in every direction
-        int[][] arr = new int[imgd.height + 2][imgd.width + 2];
-        for (int j = 0; j < (imgd.height + 2); j++) {
-            arr[j][0] = -1;
-            arr[j][imgd.width + 1] = -1;
-        }
-        for (int i = 0; i < (imgd.width + 2); i++) {
-            arr[0][i] = -1;
-            arr[imgd.height + 1][i] = -1;
-        }
-
-        int idx, cd, cdl, ci, c1, c2, c3, c4;
-
+        // Creating the indexed image, which has a boundary filled with -1 in
+        // every direction
+        IndexedImage indexedImage = new IndexedImage(imgd.width, imgd.height,
+                palette);
 
         byte[][] original_palette_backup = palette;
         long[][] paletteacc = new long[palette.length][5];
+        // unsigned copy of the palette for the distance loop
+        int[][] pal = new int[palette.length][4];
+        QuantizationStats stats = new QuantizationStats();
+
+        // With sampling the cycles run over a stratified sample of the
+        // pixels, and only the final pass visits every pixel
+        stats.sampleStride = PixelSampler.stride(imgd, options);
+        ImageData clustered = PixelSampler.sample(imgd, stats.sampleStride);
+        boolean sampled = clustered != imgd;
+        IndexedImage clusteredIndexes = sampled ? new IndexedImage(
+                clustered.width, clustered.height, palette) : indexedImage;
+        int band = ColorQuantizationTask.band(clustered,
+                Utils.parallelism(options));
+
+        // The clustering only needs the color counts, so with few unique
+        // colors the cycles run over a histogram, and the pixels are only
+        // visited once more at the end to write the indexes
+        ColorHistogram histogram = null;
+        int[] histogramIndexes = null;
+        if (options.isHistogramQuantization()) {
+            int pixels = clustered.width * clustered.height;
+            histogram = ColorHistogram.of(clustered,
+                    Math.max(1, Math.min(pixels / 2, MAX_HISTOGRAM_COLORS)));
+            if (histogram != null) {
+                histogramIndexes = new int[histogram.size];
+                stats.histogramColors = histogram.size;
+            }
+        }
+
+        ColorQuantizationTask.Accumulator assigned = null;
 
         // Repeat clustering step "cycles" times
         for (int cnt = 0; cnt < options.colorQuantCycles(); cnt++) {
@@ -80,7 +290,8 @@ public class VectorizingUtils {
 
                     if (options.isOldQuantizer()) {
                         double ratio = (double) (paletteacc[k][4])
-                                / (double) (imgd.width * imgd.height);
+                                / (double) (clustered.width
+                                * clustered.height);
 
                         // Randomizing a color, if there are too few pixels
                         // and there will be a new cycle
@@ -99,62 +310,83 @@ public class VectorizingUtils {
                 }
             }
 
-            // Reseting palette accumulator for averaging
-            for (int i = 0; i < palette.length; i++) {
-                paletteacc[i][0] = 0;
-                paletteacc[i][1] = 0;
-                paletteacc[i][2] = 0;
-                paletteacc[i][3] = 0;
-                paletteacc[i][4] = 0;
-            }
-
-            // loop through all pixels
-            for (int j = 0; j < imgd.height; j++) {
-                for (int i = 0; i < imgd.width; i++) {
-
-                    idx = ((j * imgd.width) + i) * 4;
-
-                    // find closest color from original_palette_backup by
-                    // measuring (rectilinear) color distance between this
-                    // pixel and all palette colors
-                    cdl = 256 + 256 + 256 + 256;
-                    ci = 0;
-                    for (int k = 0; k < original_palette_backup.length; k++) {
-
-                        // In my experience, https://en.wikipedia.org/wiki/Rectilinear_distance
-                        // works better than https://en.wikipedia.org/wiki/Euclidean_distance
-                        c1 = Math.abs(original_palette_backup[k][0]
-                                - imgd.data[idx]);
-                        c2 = Math.abs(original_palette_backup[k][1]
-                                - imgd.data[idx + 1]);
-                        c3 = Math.abs(original_palette_backup[k][2]
-                                - imgd.data[idx + 2]);
-                        c4 = Math.abs(original_palette_backup[k][3]
-                                - imgd.data[idx + 3]);
-                        // weighted alpha seems to help images with transparency
-                        cd = c1 + c2 + c3 + (c4 * 4);
-
-                        // Remember this color if this is the closest yet
-                        if (cd < cdl) {
-                            cdl = cd;
-                            ci = k;
-                        }
+            // Converged if no palette color moved more than the tolerance in
+            // the averaging: one more pass assigns the pixels to the averaged
+            // colors, then the clustering stops
+            boolean lastCycle = false;
+            if ((cnt > 0) && (options.convergenceShift() >= 0)) {
+                lastCycle = paletteShift(original_palette_backup, pal)
+                        <= options.convergenceShift();
+            }
 
-                    }
+            for (int k = 0; k < original_palette_backup.length; k++) {
+                pal[k][0] = 128 + original_palette_backup[k][0];
+                pal[k][1] = 128 + original_palette_backup[k][1];
+                pal[k][2] = 128 + original_palette_backup[k][2];
+                pal[k][3] = 128 + original_palette_backup[k][3];
+            }
 
-                    // add to palettacc
-                    paletteacc[ci][0] += 128 + imgd.data[idx];
-                    paletteacc[ci][1] += 128 + imgd.data[idx + 1];
-                    paletteacc[ci][2] += 128 + imgd.data[idx + 2];
-                    paletteacc[ci][3] += 128 + imgd.data[idx + 3];
-                    paletteacc[ci][4]++;
+            ColorQuantizationTask.Accumulator acc;
+            if (histogram != null) {
+                acc = histogramClustering(histogram, pal, histogramIndexes,
+                        kernels);
+            } else {
+                // loop through all pixels in bands of rows, every band has
+                // its own palette accumulator for averaging
+                acc = Utils.invoke(new ColorQuantizationTask(clustered, pal,
+                        clusteredIndexes, band, options.colorCacheSize(),
+                        kernels, sampled), options);
+            }
+            assigned = acc;
+            paletteacc = acc.paletteacc;
+            stats.cacheHits += acc.cacheHits;
+            stats.cacheMisses += acc.cacheMisses;
+            stats.reassigned = acc.reassigned;
+            stats.cycles++;
+            if (sampled) {
+                stats.sampleError = mean(acc.distance, clustered);
+            }
 
-                    arr[j + 1][i + 1] = ci;
-                }
+            // Converged if few pixels changed color in this pass, the
+            // palette and the indexes match, so there is no need to average
+            // again
+            if (lastCycle || ((cnt > 0)
+                    && (options.convergenceReassigned() >= 0)
+                    && (acc.reassigned <= options.convergenceReassigned()))) {
+                break;
             }
         }
 
-        return new IndexedImage(arr, original_palette_backup);
+        if (sampled) {
+            // The final pass over all pixels with the palette of the last
+            // cycle, measuring how well it fits the full image
+            ColorQuantizationTask.Accumulator acc = Utils.invoke(
+                    new ColorQuantizationTask(imgd, pal, indexedImage,
+                            ColorQuantizationTask.band(imgd,
+                                    Utils.parallelism(options)),
+                            options.colorCacheSize(), kernels, true),
+                    options);
+            stats.cacheHits += acc.cacheHits;
+            stats.cacheMisses += acc.cacheMisses;
+            stats.paletteError = mean(acc.distance, imgd);
+            assigned = acc;
+        } else if (histogram != null) {
+            // Writing the indexes of the last cycle
+            writeIndexes(imgd, histogram, histogramIndexes, indexedImage);
+            assigned = null;
+        }
+        if (assigned != null) {
+            // the pixel counts and bounding boxes of the pass that wrote the
+            // indexes
+            indexedImage.colorCounts = new long[palette.length];
+            for (int k = 0; k < palette.length; k++) {
+                indexedImage.colorCounts[k] = assigned.paletteacc[k][4];
+            }
+            indexedImage.colorBounds = assigned.bounds;
+        }
+
+        indexedImage.stats = stats;
+        return indexedImage;
     }
 
     /**
@@ -168,8 +400,8 @@ public class VectorizingUtils {
      * @return
      */
     public static int[][][] layering(IndexedImage ii) {
-        // Creating layers for each indexed color in arr
-        int val = 0, aw = ii.array[0].length, ah = ii.array.length, n1, n2, n3,
+        // Creating layers for each indexed color
+        int val = 0, aw = ii.width + 2, ah = ii.height + 2, idx, n1, n2, n3,
                 n4, n5, n6, n7, n8;
 
         int[][][] layers = new int[ii.palette.length][ah][aw];
@@ -179,17 +411,18 @@ public class VectorizingUtils {
             for (int i = 1; i < (aw - 1); i++) {
 
                 // This pixel's indexed color
-                val = ii.array[j][i];
+                idx = (j * aw) + i;
+                val = ii.get(idx);
 
                 // Are neighbor pixel colors the same?
-                n1 = ii.array[j - 1][i - 1] == val ? 1 : 0;
-                n2 = ii.array[j - 1][i] == val ? 1 : 0;
-                n3 = ii.array[j - 1][i + 1] == val ? 1 : 0;
-                n4 = ii.array[j][i - 1] == val ? 1 : 0;
-                n5 = ii.array[j][i + 1] == val ? 1 : 0;
-                n6 = ii.array[j + 1][i - 1] == val ? 1 : 0;
-                n7 = ii.array[j + 1][i] == val ? 1 : 0;
-                n8 = ii.array[j + 1][i + 1] == val ? 1 : 0;
+                n1 = ii.get(idx - aw - 1) == val ? 1 : 0;
+                n2 = ii.get(idx - aw) == val ? 1 : 0;
+                n3 = ii.get(idx - aw + 1) == val ? 1 : 0;
+                n4 = ii.get(idx - 1) == val ? 1 : 0;
+                n5 = ii.get(idx + 1) == val ? 1 : 0;
+                n6 = ii.get(idx + aw - 1) == val ? 1 : 0;
+                n7 = ii.get(idx + aw) == val ? 1 : 0;
+                n8 = ii.get(idx + aw + 1) == val ? 1 : 0;
 
                 // this pixel's type and looking back on previous pixels
                 layers[val][j + 1][i + 1] = 1 + (n5 * 2) + (n8 * 4) + (n7 * 8);
@@ -243,6 +476,137 @@ public class VectorizingUtils {
             {{-1, -1, -1, -1}, {-1, -1, -1, -1}, {-1, -1, -1, -1}, {-1, -1, -1, -1}}
     };
 
+    /**
+     * 2. The edge nodes of one color of an indexed image within the
+     * bounding box of the color, in rows of box width + 2 nodes: node (x, y)
+     * is node (x + box[0], y + box[1]) of the image. The node types are the
+     * same as in the layers of layering: bit 1, 2, 4 and 8 are set if the
+     * pixel at the top left, top right, bottom right and bottom left of the
+     * node has the color.
+     *
+     * @param ii
+     * @param val   palette index
+     * @param box   {min x, min y, max x, max y} of the pixels of the color
+     * @param nodes at least (box width + 2) * (box height + 2) edge nodes,
+     *              every node of the box is written
+     */
+    static void layer(IndexedImage ii, int val, int[] box, byte[] nodes) {
+        int stride = ii.stride(), width = (box[2] - box[0]) + 1;
+        int height = (box[3] - box[1]) + 1, nodeStride = width + 2;
+        // there are no pixels of the color above the first row of nodes
+        Arrays.fill(nodes, 0, nodeStride, (byte) 0);
+        for (int y = 1; y < (height + 2); y++) {
+            int row = y * nodeStride;
+            int above = ((y - 1 + box[1]) * stride) + box[0];
+            int below = above + stride;
+            // nor on the left of the first column
+            nodes[row] = 0;
+            int upLeft = 0, left = 0, up, here;
+            for (int x = 1; x < nodeStride; x++) {
+                up = ii.get(above + x) == val ? 1 : 0;
+                here = ii.get(below + x) == val ? 1 : 0;
+                nodes[row + x] = (byte) (upLeft | (up << 1) | (here << 2)
+                        | (left << 3));
+                upLeft = up;
+                left = here;
+            }
+        }
+    }
+
+    /**
+     * 2. The pixels of one color of an indexed image within the bounding box
+     * of the color as a bit mask for {@link MaskEdgeNodes}, in rows of
+     * (box width + 2 + 63) / 64 words
+     *
+     * @param ii
+     * @param val palette index
+     * @param box {min x, min y, max x, max y} of the pixels of the color
+     * @return
+     */
+    static long[] layerMask(IndexedImage ii, int val, int[] box) {
+        int stride = ii.stride(), width = (box[2] - box[0]) + 1;
+        int height = (box[3] - box[1]) + 1, words = (width + 2 + 63) >>> 6;
+        long[] mask = new long[(height + 2) * words];
+        for (int y = 1; y <= height; y++) {
+            int row = ((y + box[1]) * stride) + box[0], base = y * words;
+            for (int x = 1; x <= width; x++) {
+                if (ii.get(row + x) == val) {
+                    mask[base + (x >>> 6)] |= 1L << (x & 63);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * 2. - 3. Layering and pathscan of one color at a time: the edge nodes
+     * of a color are built in a byte buffer, scanned, and the buffer is
+     * reused for the next color. Colors without pixels have no paths and
+     * are skipped.
+     *
+     * @param ii
+     * @param pathomit
+     * @return
+     */
+    public static List<PackedPaths> batchpathscan(IndexedImage ii,
+            float pathomit) {
+        return batchpathscan(ii, pathomit, false);
+    }
+
+    /**
+     * 2. - 3. Layering and pathscan of one color at a time, with the edge
+     * nodes in a byte buffer, or computed from a bit mask of the color 64
+     * nodes at a time, see {@link MaskEdgeNodes}. Both give the node types
+     * of layering, so the paths are the same. Only the bounding box of a
+     * color is built and scanned, colors without pixels are skipped. The
+     * pixel counts and boxes of the color quantization are used, if they
+     * are not known they are measured first.
+     *
+     * @param ii
+     * @param pathomit
+     * @param bitmasks
+     * @return
+     */
+    public static List<PackedPaths> batchpathscan(IndexedImage ii,
+            float pathomit, boolean bitmasks) {
+        if ((ii.colorCounts == null) || (ii.colorBounds == null)) {
+            int stride = ii.stride();
+            ii.resetColorBounds();
+            for (int j = 0; j < ii.height; j++) {
+                for (int i = 0; i < ii.width; i++) {
+                    ii.include(ii.get(((j + 1) * stride) + i + 1), i, j);
+                }
+            }
+        }
+
+        List<PackedPaths> bpaths = new ArrayList<>();
+        byte[] nodes = null;
+        for (int k = 0; k < ii.palette.length; k++) {
+            int[] box = ii.colorBounds[k];
+            if (ii.colorCounts[k] == 0) {
+                bpaths.add(new PackedPaths(0, 0));
+                continue;
+            }
+            int width = (box[2] - box[0]) + 1, height = (box[3] - box[1]) + 1;
+            EdgeNodes layer;
+            if (bitmasks) {
+                layer = new MaskEdgeNodes(layerMask(ii, k, box),
+                        (width + 2 + 63) >>> 6, width, height);
+            } else {
+                // the buffer of the first color is reused if it is big
+                // enough
+                int length = (width + 2) * (height + 2);
+                if ((nodes == null) || (nodes.length < length)) {
+                    nodes = new byte[length];
+                }
+                layer(ii, k, box, nodes);
+                layer = EdgeNodes.of(nodes, width + 2, height + 2);
+            }
+            bpaths.add(pathscan(layer, pathomit, box[0], box[1]));
+        }
+        return bpaths;
+    }
+
     /**
      * 3. Walking through an edge node array, discarding edge node types 0 and
      * 15 and creating paths from the rest.
@@ -257,55 +621,91 @@ public class VectorizingUtils {
      * @param pathomit
      * @return
      */
-    public static List<List<Integer[]>> pathscan(int[][] arr, float pathomit) {
-        List<List<Integer[]>> paths = new ArrayList<>();
-        List<Integer[]> thispath;
-        int px = 0, py = 0, w = arr[0].length, h = arr.length, dir = 0;
+    public static PackedPaths pathscan(int[][] arr, float pathomit) {
+        return pathscan(EdgeNodes.of(arr), pathomit);
+    }
+
+    /**
+     * 3. pathscan over the edge nodes of a layer that are not in an int[][]
+     * array, like the nodes of a bilevel bit mask
+     *
+     * @param nodes
+     * @param pathomit
+     * @return
+     */
+    static PackedPaths pathscan(EdgeNodes nodes, float pathomit) {
+        return pathscan(nodes, pathomit, 0, 0);
+    }
+
+    /**
+     * 3. pathscan over the edge nodes of a part of an image, node (x, y) of
+     * the part is node (x + offsetX, y + offsetY) of the image. The points
+     * of hole paths are not stored, paths shorter than pathomit are dropped
+     * when they are closed.
+     *
+     * @param nodes
+     * @param pathomit
+     * @param offsetX
+     * @param offsetY
+     * @return paths in the coordinates of the image, with the edge node
+     * type of every point as its code
+     */
+    static PackedPaths pathscan(EdgeNodes nodes, float pathomit,
+            int offsetX, int offsetY) {
+        PackedPaths paths = new PackedPaths();
+        int px = 0, py = 0, w = nodes.width(), h = nodes.height(), dir = 0,
+                type, startx, starty, length;
         boolean pathfinished = true, holepath = false;
         byte[] lookuprow;
 
         for (int j = 0; j < h; j++) {
-            for (int i = 0; i < w; i++) {
-                if ((arr[j][i] != 0) && (arr[j][i] != 15)) {
-
-                    // Init
-                    px = i;
-                    py = j;
-                    paths.add(new ArrayList<>());
-                    thispath = paths.get(paths.size() - 1);
-                    pathfinished = false;
-
-                    // fill paths will be drawn, but hole paths are also
-                    // required to remove unnecessary edge nodes
-                    dir = pathscan_dir_lookup[arr[py][px]];
-                    holepath = pathscan_holepath_lookup[arr[py][px]];
-
-                    // Path points loop
-                    while (!pathfinished) {
-
-                        // New path point
-                        thispath.add(new Integer[3]);
-                        thispath.get(thispath.size() - 1)[0] = px - 1;
-                        thispath.get(thispath.size() - 1)[1] = py - 1;
-                        thispath.get(thispath.size() - 1)[2] = arr[py][px];
-
-                        // Next: look up the replacement, direction and
-                        // coordinate changes = clear this cell, turn if
-                        // required, walk forward
-                        lookuprow = pathscan_combined_lookup[arr[py][px]][dir];
-                        arr[py][px] = lookuprow[0];
-                        dir = lookuprow[1];
-                        px += lookuprow[2];
-                        py += lookuprow[3];
-
-                        // Close path
-                        if (((px - 1) == thispath.get(0)[0])
-                                && ((py - 1) == thispath.get(0)[1])) {
-                            pathfinished = true;
-                            // Discarding 'hole' type paths and paths shorter
-                            // than pathomit
-                            if ((holepath) || (thispath.size() < pathomit)) {
-                                paths.remove(thispath);
+            for (int i = nodes.nextEdge(0, j); i < w;
+                    i = nodes.nextEdge(i + 1, j)) {
+
+                // Init
+                px = i;
+                py = j;
+                startx = px - 1 + offsetX;
+                starty = py - 1 + offsetY;
+                length = 0;
+                pathfinished = false;
+
+                // fill paths will be drawn, but hole paths are also
+                // required to remove unnecessary edge nodes
+                type = nodes.get(px, py);
+                dir = pathscan_dir_lookup[type];
+                holepath = pathscan_holepath_lookup[type];
+
+                // Path points loop
+                while (!pathfinished) {
+                    type = nodes.get(px, py);
+
+                    // New path point, hole paths are only walked
+                    if (!holepath) {
+                        paths.add(px - 1 + offsetX, py - 1 + offsetY, type);
+                    }
+                    length++;
+
+                    // Next: look up the replacement, direction and
+                    // coordinate changes = clear this cell, turn if
+                    // required, walk forward
+                    lookuprow = pathscan_combined_lookup[type][dir];
+                    nodes.set(px, py, lookuprow[0]);
+                    dir = lookuprow[1];
+                    px += lookuprow[2];
+                    py += lookuprow[3];
+
+                    // Close path
+                    if (((px - 1 + offsetX) == startx)
+                            && ((py - 1 + offsetY) == starty)) {
+                        pathfinished = true;
+                        // Discarding paths shorter than pathomit, hole
+                        // paths have no points to discard
+                        if (!holepath) {
+                            if (length < pathomit) {
+                                paths.drop();
+                            } else {
+                                paths.close();
                             }
                         }
                     }
@@ -323,83 +723,97 @@ public class VectorizingUtils {
      * @param pathomit
      * @return
      */
-    public static List<List<List<Integer[]>>> batchpathscan(int[][][] layers,
+    public static List<PackedPaths> batchpathscan(int[][][] layers,
             float pathomit) {
-        List<List<List<Integer[]>>> bpaths = new ArrayList<>();
+        List<PackedPaths> bpaths = new ArrayList<>();
         for (int[][] layer : layers) {
             bpaths.add(pathscan(layer, pathomit));
         }
         return bpaths;
     }
 
+    /**
+     * 3. Batch pathscan of the layers of a bilevel image, one layer at a
+     * time, straight from the bit mask
+     *
+     * @param bilevel
+     * @param pathomit
+     * @return
+     */
+    static List<PackedPaths> batchpathscan(BilevelImage bilevel,
+            float pathomit) {
+        List<PackedPaths> bpaths = new ArrayList<>();
+        for (int k = 0; k < bilevel.palette.length; k++) {
+            bpaths.add(pathscan(bilevel.layer(k), pathomit));
+        }
+        return bpaths;
+    }
+
     /**
      * 4. interpolating between path points for nodes with 8 directions
      * ( East, SouthEast, S, SW, W, NW, N, NE )
      *
      * @param paths
-     * @return
+     * @return the internodes with doubled coordinates, and the direction to
+     * the next internode as the code of every internode
      */
-    public static List<List<Double[]>> internodes(List<List<Integer[]>> paths) {
-        List<List<Double[]>> ins = new ArrayList<>();
-        List<Double[]> thisinp;
-        Double[] thispoint, nextpoint = new Double[2];
-        Integer[] pp1, pp2, pp3;
-        int palen = 0, nextidx = 0, nextidx2 = 0;
+    public static PackedPaths internodes(PackedPaths paths) {
+        PackedPaths ins = new PackedPaths(paths.size(), paths.points());
+        int palen = 0, first = 0, pp1 = 0, pp2 = 0, pp3 = 0;
+        int thisx, thisy, nextx, nexty, dir;
 
         // paths loop
         for (int pacnt = 0; pacnt < paths.size(); pacnt++) {
-            ins.add(new ArrayList<>());
-            thisinp = ins.get(ins.size() - 1);
-            palen = paths.get(pacnt).size();
+            first = paths.start(pacnt);
+            palen = paths.length(pacnt);
             // pathpoints loop
             for (int pcnt = 0; pcnt < palen; pcnt++) {
 
-                // interpolate between two path points
-                nextidx = (pcnt + 1) % palen;
-                nextidx2 = (pcnt + 2) % palen;
-                thisinp.add(new Double[3]);
-                thispoint = thisinp.get(thisinp.size() - 1);
-                pp1 = paths.get(pacnt).get(pcnt);
-                pp2 = paths.get(pacnt).get(nextidx);
-                pp3 = paths.get(pacnt).get(nextidx2);
-                thispoint[0] = (pp1[0] + pp2[0]) / 2.0;
-                thispoint[1] = (pp1[1] + pp2[1]) / 2.0;
-                nextpoint[0] = (pp2[0] + pp3[0]) / 2.0;
-                nextpoint[1] = (pp2[1] + pp3[1]) / 2.0;
+                // interpolate between two path points, the doubled
+                // coordinates of the midpoints are the sums
+                pp1 = first + pcnt;
+                pp2 = first + ((pcnt + 1) % palen);
+                pp3 = first + ((pcnt + 2) % palen);
+                thisx = paths.x(pp1) + paths.x(pp2);
+                thisy = paths.y(pp1) + paths.y(pp2);
+                nextx = paths.x(pp2) + paths.x(pp3);
+                nexty = paths.y(pp2) + paths.y(pp3);
 
                 // line segment direction to the next point
-                if (thispoint[0] < nextpoint[0]) {
-                    if (thispoint[1] < nextpoint[1]) {
-                        thispoint[2] = 1.0;
+                if (thisx < nextx) {
+                    if (thisy < nexty) {
+                        dir = 1;
                     }// SouthEast
-                    else if (thispoint[1] > nextpoint[1]) {
-                        thispoint[2] = 7.0;
+                    else if (thisy > nexty) {
+                        dir = 7;
                     }// NE
                     else {
-                        thispoint[2] = 0.0;
+                        dir = 0;
                     } // E
-                } else if (thispoint[0] > nextpoint[0]) {
-                    if (thispoint[1] < nextpoint[1]) {
-                        thispoint[2] = 3.0;
+                } else if (thisx > nextx) {
+                    if (thisy < nexty) {
+                        dir = 3;
                     }// SW
-                    else if (thispoint[1] > nextpoint[1]) {
-                        thispoint[2] = 5.0;
+                    else if (thisy > nexty) {
+                        dir = 5;
                     }// NW
                     else {
-                        thispoint[2] = 4.0;
+                        dir = 4;
                     }// W
                 } else {
-                    if (thispoint[1] < nextpoint[1]) {
-                        thispoint[2] = 2.0;
+                    if (thisy < nexty) {
+                        dir = 2;
                     }// S
-                    else if (thispoint[1] > nextpoint[1]) {
-                        thispoint[2] = 6.0;
+                    else if (thisy > nexty) {
+                        dir = 6;
                     }// N
                     else {
-                        thispoint[2] = 8.0;
+                        dir = 8;
                     }// center, this should not happen
                 }
+                ins.add(thisx, thisy, dir);
             }
+            ins.close();
         }
         return ins;
     }
@@ -410,9 +824,8 @@ public class VectorizingUtils {
      * @param bpaths
      * @return
      */
-    static List<List<List<Double[]>>> batchinternodes(
-            List<List<List<Integer[]>>> bpaths) {
-        List<List<List<Double[]>>> binternodes = new ArrayList<>();
+    static List<PackedPaths> batchinternodes(List<PackedPaths> bpaths) {
+        List<PackedPaths> binternodes = new ArrayList<>();
         for (int k = 0; k < bpaths.size(); k++) {
             binternodes.add(internodes(bpaths.get(k)));
         }
@@ -445,31 +858,34 @@ public class VectorizingUtils {
      * <p>
      * path type is discarded, no check for path.size < 3 , which should not happen
      *
-     * @param path
+     * @param internodes
+     * @param path      index of the path in internodes
      * @param ltreshold
      * @param qtreshold
      * @return
      */
-    public static List<Segment> tracepath(List<Double[]> path,
+    public static List<Segment> tracepath(PackedPaths internodes, int path,
             double ltreshold, double qtreshold) {
         int pcnt = 0, seqend = 0;
-        double segtype1, segtype2;
+        int segtype1, segtype2;
         List<Segment> smp = new ArrayList<>();
         //Double [] thissegment;
-        int pathlength = path.size();
+        int first = internodes.start(path);
+        int pathlength = internodes.length(path);
 
         while (pcnt < pathlength) {
             // 5.1. Find sequences of points with only 2 segment types
-            segtype1 = path.get(pcnt)[2];
+            segtype1 = internodes.code(first + pcnt);
             segtype2 = -1;
             seqend = pcnt + 1;
             while (
-                    ((path.get(seqend)[2] == segtype1)
-                            || (path.get(seqend)[2] == segtype2)
+                    ((internodes.code(first + seqend) == segtype1)
+                            || (internodes.code(first + seqend) == segtype2)
                             || (segtype2 == -1))
                             && (seqend < (pathlength - 1))) {
-                if ((path.get(seqend)[2] != segtype1) && (segtype2 == -1)) {
-                    segtype2 = path.get(seqend)[2];
+                if ((internodes.code(first + seqend) != segtype1)
+                        && (segtype2 == -1)) {
+                    segtype2 = internodes.code(first + seqend);
                 }
                 seqend++;
             }
@@ -479,7 +895,8 @@ public class VectorizingUtils {
 
             // 5.2. - 5.6. Split sequence and recursively apply 5.2. - 5.6.
             // to startpoint-splitpoint and splitpoint-endpoint sequences
-            smp.addAll(fitSequence(path, ltreshold, qtreshold, pcnt, seqend));
+            smp.addAll(fitSequence(internodes, path, ltreshold, qtreshold,
+                    pcnt, seqend));
             // 5.7. TODO? If splitpoint-endpoint is a spline, try to add new
             // points from the next sequence
 
@@ -498,33 +915,38 @@ public class VectorizingUtils {
      * 5.2. - 5.6. recursively fitting a straight or quadratic line segment on
      * this sequence of path nodes, called from tracepath()
      *
-     * @param path
+     * @param internodes
+     * @param path      index of the path in internodes
      * @param ltreshold
      * @param qtreshold
      * @param seqstart
      * @param seqend
      * @return
      */
-    public static List<Segment> fitSequence(List<Double[]> path,
+    public static List<Segment> fitSequence(PackedPaths internodes, int path,
             double ltreshold, double qtreshold, int seqstart, int seqend) {
         List<Segment> segments = new ArrayList<>();
-        Double[] thissegment;
-        int pathlength = path.size();
+        int first = internodes.start(path);
+        int pathlength = internodes.length(path);
 
         // return if invalid seqend
         if ((seqend > pathlength) || (seqend < 0)) {
             return segments;
         }
 
+        // the coordinates of internodes are stored doubled
+        double startx = internodes.x(first + seqstart) / 2.0,
+                starty = internodes.y(first + seqstart) / 2.0,
+                endx = internodes.x(first + seqend) / 2.0,
+                endy = internodes.y(first + seqend) / 2.0;
         int errorpoint = seqstart;
         boolean curvepass = true;
-        double px, py, dist2, errorval = 0;
+        double px, py, pointx, pointy, dist2, errorval = 0;
         double tl = (seqend - seqstart);
         if (tl < 0) {
             tl += pathlength;
         }
-        double vx = (path.get(seqend)[0] - path.get(seqstart)[0]) / tl,
-                vy = (path.get(seqend)[1] - path.get(seqstart)[1]) / tl;
+        double vx = (endx - startx) / tl, vy = (endy - starty) / tl;
 
         // 5.2. Fit a straight line on the sequence
         int pcnt = (seqstart + 1) % pathlength;
@@ -534,10 +956,12 @@ public class VectorizingUtils {
             if (pl < 0) {
                 pl += pathlength;
             }
-            px = path.get(seqstart)[0] + (vx * pl);
-            py = path.get(seqstart)[1] + (vy * pl);
-            dist2 = ((path.get(pcnt)[0] - px) * (path.get(pcnt)[0] - px))
-                    + ((path.get(pcnt)[1] - py) * (path.get(pcnt)[1] - py));
+            px = startx + (vx * pl);
+            py = starty + (vy * pl);
+            pointx = internodes.x(first + pcnt) / 2.0;
+            pointy = internodes.y(first + pcnt) / 2.0;
+            dist2 = ((pointx - px) * (pointx - px))
+                    + ((pointy - py) * (pointy - py));
             if (dist2 > ltreshold) {
                 curvepass = false;
             }
@@ -550,9 +974,7 @@ public class VectorizingUtils {
 
         // return straight line if fits
         if (curvepass) {
-            segments.add(Segment.line(
-                    path.get(seqstart)[0], path.get(seqstart)[1],
-                    path.get(seqend)[0], path.get(seqend)[1]));
+            segments.add(Segment.line(startx, starty, endx, endy));
             return segments;
         }
 
@@ -567,11 +989,10 @@ public class VectorizingUtils {
         // helpers and projecting to get control point
         double t = (fitpoint - seqstart) / tl, t1 = (1.0 - t) * (1.0 - t),
                 t2 = 2.0 * (1.0 - t) * t, t3 = t * t;
-        double cpx = (((t1 * path.get(seqstart)[0])
-                + (t3 * path.get(seqend)[0])) - path.get(fitpoint)[0]) / -t2,
-                cpy = (((t1 * path.get(seqstart)[1])
-                        + (t3 * path.get(seqend)[1])) - path.get(fitpoint)[1])
-                        / -t2;
+        double cpx = (((t1 * startx) + (t3 * endx))
+                - (internodes.x(first + fitpoint) / 2.0)) / -t2,
+                cpy = (((t1 * starty) + (t3 * endy))
+                        - (internodes.y(first + fitpoint) / 2.0)) / -t2;
 
         // Check every point
         pcnt = seqstart + 1;
@@ -581,13 +1002,13 @@ public class VectorizingUtils {
             t1 = (1.0 - t) * (1.0 - t);
             t2 = 2.0 * (1.0 - t) * t;
             t3 = t * t;
-            px = (t1 * path.get(seqstart)[0]) + (t2 * cpx)
-                    + (t3 * path.get(seqend)[0]);
-            py = (t1 * path.get(seqstart)[1]) + (t2 * cpy)
-                    + (t3 * path.get(seqend)[1]);
+            px = (t1 * startx) + (t2 * cpx) + (t3 * endx);
+            py = (t1 * starty) + (t2 * cpy) + (t3 * endy);
 
-            dist2 = ((path.get(pcnt)[0] - px) * (path.get(pcnt)[0] - px))
-                    + ((path.get(pcnt)[1] - py) * (path.get(pcnt)[1] - py));
+            pointx = internodes.x(first + pcnt) / 2.0;
+            pointy = internodes.y(first + pcnt) / 2.0;
+            dist2 = ((pointx - px) * (pointx - px))
+                    + ((pointy - py) * (pointy - py));
 
             if (dist2 > qtreshold) {
                 curvepass = false;
@@ -601,10 +1022,7 @@ public class VectorizingUtils {
 
         // return spline if fits
         if (curvepass) {
-            segments.add(Segment.conic(
-                    path.get(seqstart)[0], path.get(seqstart)[1],
-                    cpx, cpy,
-                    path.get(seqend)[0], path.get(seqend)[1]));
+            segments.add(Segment.conic(startx, starty, cpx, cpy, endx, endy));
             return segments;
         }
 
@@ -614,25 +1032,26 @@ public class VectorizingUtils {
 
         // 5.6. Split sequence and recursively apply 5.2. - 5.6. to
         // startpoint-splitpoint and splitpoint-endpoint sequences
-        segments = fitSequence(path, ltreshold, qtreshold, seqstart, splitpoint);
-        segments.addAll(fitSequence(path, ltreshold, qtreshold, splitpoint, seqend));
+        segments = fitSequence(internodes, path, ltreshold, qtreshold,
+                seqstart, splitpoint);
+        segments.addAll(fitSequence(internodes, path, ltreshold, qtreshold,
+                splitpoint, seqend));
         return segments;
     }
 
     /**
      * 5. Batch tracing paths
      *
-     * @param internodepaths
+     * @param internodes
      * @param ltres
      * @param qtres
      * @return
      */
-    public static List<List<Segment>> batchtracepaths(
-            List<List<Double[]>> internodepaths, double ltres,
-            double qtres) {
+    public static List<List<Segment>> batchtracepaths(PackedPaths internodes,
+            double ltres, double qtres) {
         List<List<Segment>> btracedpaths = new ArrayList<>();
-        for (int k = 0; k < internodepaths.size(); k++) {
-            btracedpaths.add(tracepath(internodepaths.get(k), ltres, qtres));
+        for (int k = 0; k < internodes.size(); k++) {
+            btracedpaths.add(tracepath(internodes, k, ltres, qtres));
         }
         return btracedpaths;
     }
@@ -646,8 +1065,7 @@ public class VectorizingUtils {
      * @return
      */
     public static List<List<List<Segment>>> batchtracelayers(
-            List<List<List<Double[]>>> binternodes, double ltres,
-            double qtres) {
+            List<PackedPaths> binternodes, double ltres, double qtres) {
         List<List<List<Segment>>> btbis = new ArrayList<>();
         for (int k = 0; k < binternodes.size(); k++) {
             btbis.add(batchtracepaths(binternodes.get(k), ltres, qtres));
@@ -0,0 +1,409 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Xiaolin Wu's color quantizer (Graphics Gems II, 1991): the RGB cube is
+ * recursively cut into boxes, always splitting the box with the largest
+ * variance where the variance of the two halves is smallest. It works on
+ * cumulative moments of a 32x32x32 histogram, so after one pass to build the
+ * histogram the cost does not depend on the number of pixels. The result is
+ * deterministic.
+ * <p>
+ * The alpha channel is not used to cut, the color of a box gets the mean
+ * alpha of its pixels.
+ *
+ * @author sdejonge
+ */
+public class WuQuantizer {
+
+    // 5 bits per channel, index 0 is the zero border of the moments
+    private static final int SIDE = 33;
+    private static final int RED = 2, GREEN = 1, BLUE = 0;
+
+    /**
+     * Histogram and moments: pixel count, the sums of R, G, B and A and the
+     * sum of R*R + G*G + B*B in every cell
+     */
+    static class Moments {
+        final long[] wt = new long[SIDE * SIDE * SIDE];
+        final long[] mr = new long[SIDE * SIDE * SIDE];
+        final long[] mg = new long[SIDE * SIDE * SIDE];
+        final long[] mb = new long[SIDE * SIDE * SIDE];
+        final long[] ma = new long[SIDE * SIDE * SIDE];
+        final double[] m2 = new double[SIDE * SIDE * SIDE];
+
+        void add(Moments other) {
+            for (int i = 0; i < wt.length; i++) {
+                wt[i] += other.wt[i];
+                mr[i] += other.mr[i];
+                mg[i] += other.mg[i];
+                mb[i] += other.mb[i];
+                ma[i] += other.ma[i];
+                m2[i] += other.m2[i];
+            }
+        }
+    }
+
+    /**
+     * A box of histogram cells, from r0 (exclusive) to r1 (inclusive) etc.
+     */
+    private static class Box {
+        int r0, r1, g0, g1, b0, b1, vol;
+    }
+
+    /**
+     * Building the histogram in bands of pixels, the histograms of the bands
+     * are added when they are joined
+     */
+    static class HistogramTask extends RecursiveTask<Moments> {
+        private static final long serialVersionUID = 1L;
+
+        private final ImageData imgd;
+        private final int start, end, band;
+
+        HistogramTask(ImageData imgd, int start, int end, int band) {
+            this.imgd = imgd;
+            this.start = start;
+            this.end = end;
+            this.band = band;
+        }
+
+        @Override
+        protected Moments compute() {
+            if ((end - start) > band) {
+                int mid = (start + end) >>> 1;
+                HistogramTask first = new HistogramTask(imgd, start, mid, band);
+                HistogramTask second = new HistogramTask(imgd, mid, end, band);
+                first.fork();
+                Moments moments = second.compute();
+                moments.add(first.join());
+                return moments;
+            }
+            Moments moments = new Moments();
+            for (int i = start; i < end; i++) {
+                int pixel = imgd.argb(i);
+                int r = (pixel >>> 16) & 0xFF;
+                int g = (pixel >>> 8) & 0xFF;
+                int b = pixel & 0xFF;
+                int index = index((r >> 3) + 1, (g >> 3) + 1, (b >> 3) + 1);
+                moments.wt[index]++;
+                moments.mr[index] += r;
+                moments.mg[index] += g;
+                moments.mb[index] += b;
+                moments.ma[index] += pixel >>> 24;
+                moments.m2[index] += (r * r) + (g * g) + (b * b);
+            }
+            return moments;
+        }
+    }
+
+    /**
+     * Reducing the image to at most maxColors colors
+     *
+     * @param imgd
+     * @param maxColors
+     * @param options   the threads to use for the histogram
+     * @return the palette as ARGB colors, it can have fewer colors than
+     * maxColors
+     */
+    public static int[] quantize(ImageData imgd, int maxColors,
+            Options options) {
+        int length = imgd.width * imgd.height;
+        int parallelism = Utils.parallelism(options);
+        int band = Math.max(65536, (length + parallelism - 1) / parallelism);
+        Moments moments = Utils.invoke(new HistogramTask(imgd, 0, length,
+                band), options);
+        cumulate(moments);
+
+        Box[] boxes = new Box[Math.max(1, maxColors)];
+        double[] vv = new double[boxes.length];
+        boxes[0] = new Box();
+        boxes[0].r1 = SIDE - 1;
+        boxes[0].g1 = SIDE - 1;
+        boxes[0].b1 = SIDE - 1;
+
+        // Cutting the box with the largest variance, until there are enough
+        // boxes or no box can be cut
+        int count = boxes.length;
+        int next = 0;
+        for (int i = 1; i < boxes.length; i++) {
+            boxes[i] = new Box();
+            if (cut(moments, boxes[next], boxes[i])) {
+                vv[next] = boxes[next].vol > 1
+                        ? variance(moments, boxes[next]) : 0;
+                vv[i] = boxes[i].vol > 1 ? variance(moments, boxes[i]) : 0;
+            } else {
+                // this box can't be cut
+                vv[next] = 0;
+                i--;
+            }
+            next = 0;
+            double temp = vv[0];
+            for (int k = 1; k <= i; k++) {
+                if (vv[k] > temp) {
+                    temp = vv[k];
+                    next = k;
+                }
+            }
+            if (temp <= 0) {
+                count = i + 1;
+                break;
+            }
+        }
+
+        // The mean color of every box
+        int[] colormap = new int[count];
+        for (int k = 0; k < count; k++) {
+            long weight = volume(boxes[k], moments.wt);
+            if (weight > 0) {
+                int r = (int) (volume(boxes[k], moments.mr) / weight);
+                int g = (int) (volume(boxes[k], moments.mg) / weight);
+                int b = (int) (volume(boxes[k], moments.mb) / weight);
+                int a = (int) (volume(boxes[k], moments.ma) / weight);
+                colormap[k] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+        return colormap;
+    }
+
+    private static int index(int r, int g, int b) {
+        return (((r * SIDE) + g) * SIDE) + b;
+    }
+
+    /**
+     * Turning the histogram into cumulative moments, so the moments of any
+     * box can be computed from its 8 corners
+     */
+    private static void cumulate(Moments m) {
+        long[] area = new long[SIDE], areaR = new long[SIDE],
+                areaG = new long[SIDE], areaB = new long[SIDE],
+                areaA = new long[SIDE];
+        double[] area2 = new double[SIDE];
+
+        for (int r = 1; r < SIDE; r++) {
+            for (int i = 0; i < SIDE; i++) {
+                area[i] = areaR[i] = areaG[i] = areaB[i] = areaA[i] = 0;
+                area2[i] = 0;
+            }
+            for (int g = 1; g < SIDE; g++) {
+                long line = 0, lineR = 0, lineG = 0, lineB = 0, lineA = 0;
+                double line2 = 0;
+                for (int b = 1; b < SIDE; b++) {
+                    int ind1 = index(r, g, b);
+                    line += m.wt[ind1];
+                    lineR += m.mr[ind1];
+                    lineG += m.mg[ind1];
+                    lineB += m.mb[ind1];
+                    lineA += m.ma[ind1];
+                    line2 += m.m2[ind1];
+
+                    area[b] += line;
+                    areaR[b] += lineR;
+                    areaG[b] += lineG;
+                    areaB[b] += lineB;
+                    areaA[b] += lineA;
+                    area2[b] += line2;
+
+                    // [r - 1][g][b]
+                    int ind2 = ind1 - (SIDE * SIDE);
+                    m.wt[ind1] = m.wt[ind2] + area[b];
+                    m.mr[ind1] = m.mr[ind2] + areaR[b];
+                    m.mg[ind1] = m.mg[ind2] + areaG[b];
+                    m.mb[ind1] = m.mb[ind2] + areaB[b];
+                    m.ma[ind1] = m.ma[ind2] + areaA[b];
+                    m.m2[ind1] = m.m2[ind2] + area2[b];
+                }
+            }
+        }
+    }
+
+    private static long volume(Box box, long[] m) {
+        return m[index(box.r1, box.g1, box.b1)]
+                - m[index(box.r1, box.g1, box.b0)]
+                - m[index(box.r1, box.g0, box.b1)]
+                + m[index(box.r1, box.g0, box.b0)]
+                - m[index(box.r0, box.g1, box.b1)]
+                + m[index(box.r0, box.g1, box.b0)]
+                + m[index(box.r0, box.g0, box.b1)]
+                - m[index(box.r0, box.g0, box.b0)];
+    }
+
+    private static double volume(Box box, double[] m) {
+        return m[index(box.r1, box.g1, box.b1)]
+                - m[index(box.r1, box.g1, box.b0)]
+                - m[index(box.r1, box.g0, box.b1)]
+                + m[index(box.r1, box.g0, box.b0)]
+                - m[index(box.r0, box.g1, box.b1)]
+                + m[index(box.r0, box.g1, box.b0)]
+                + m[index(box.r0, box.g0, box.b1)]
+                - m[index(box.r0, box.g0, box.b0)];
+    }
+
+    /**
+     * The part of the moment of a box below its lower bound in dir
+     */
+    private static long bottom(Box box, int dir, long[] m) {
+        switch (dir) {
+            case RED:
+                return -m[index(box.r0, box.g1, box.b1)]
+                        + m[index(box.r0, box.g1, box.b0)]
+                        + m[index(box.r0, box.g0, box.b1)]
+                        - m[index(box.r0, box.g0, box.b0)];
+            case GREEN:
+                return -m[index(box.r1, box.g0, box.b1)]
+                        + m[index(box.r1, box.g0, box.b0)]
+                        + m[index(box.r0, box.g0, box.b1)]
+                        - m[index(box.r0, box.g0, box.b0)];
+            default:
+                return -m[index(box.r1, box.g1, box.b0)]
+                        + m[index(box.r1, box.g0, box.b0)]
+                        + m[index(box.r0, box.g1, box.b0)]
+                        - m[index(box.r0, box.g0, box.b0)];
+        }
+    }
+
+    /**
+     * The part of the moment of a box up to pos in dir
+     */
+    private static long top(Box box, int dir, int pos, long[] m) {
+        switch (dir) {
+            case RED:
+                return m[index(pos, box.g1, box.b1)]
+                        - m[index(pos, box.g1, box.b0)]
+                        - m[index(pos, box.g0, box.b1)]
+                        + m[index(pos, box.g0, box.b0)];
+            case GREEN:
+                return m[index(box.r1, pos, box.b1)]
+                        - m[index(box.r1, pos, box.b0)]
+                        - m[index(box.r0, pos, box.b1)]
+                        + m[index(box.r0, pos, box.b0)];
+            default:
+                return m[index(box.r1, box.g1, pos)]
+                        - m[index(box.r1, box.g0, pos)]
+                        - m[index(box.r0, box.g1, pos)]
+                        + m[index(box.r0, box.g0, pos)];
+        }
+    }
+
+    /**
+     * The weighted variance of a box
+     */
+    private static double variance(Moments m, Box box) {
+        double dr = volume(box, m.mr);
+        double dg = volume(box, m.mg);
+        double db = volume(box, m.mb);
+        double xx = volume(box, m.m2);
+        return xx - (((dr * dr) + (dg * dg) + (db * db))
+                / volume(box, m.wt));
+    }
+
+    /**
+     * The best cut of a box in dir, where the sum of the variances of the
+     * halves is smallest
+     *
+     * @return the score of the cut, and the cut position in cut[0], -1 if
+     * the box can't be cut
+     */
+    private static double maximize(Moments m, Box box, int dir, int first,
+            int last, int[] cut, long wholeR, long wholeG, long wholeB,
+            long wholeW) {
+        long baseR = bottom(box, dir, m.mr);
+        long baseG = bottom(box, dir, m.mg);
+        long baseB = bottom(box, dir, m.mb);
+        long baseW = bottom(box, dir, m.wt);
+        double max = 0;
+        cut[0] = -1;
+        for (int i = first; i < last; i++) {
+            double halfR = baseR + top(box, dir, i, m.mr);
+            double halfG = baseG + top(box, dir, i, m.mg);
+            double halfB = baseB + top(box, dir, i, m.mb);
+            double halfW = baseW + top(box, dir, i, m.wt);
+            // the box below the cut can't be empty
+            if (halfW == 0) {
+                continue;
+            }
+            double temp = ((halfR * halfR) + (halfG * halfG)
+                    + (halfB * halfB)) / halfW;
+
+            halfR = wholeR - halfR;
+            halfG = wholeG - halfG;
+            halfB = wholeB - halfB;
+            halfW = wholeW - halfW;
+            // the box above the cut can't be empty
+            if (halfW == 0) {
+                continue;
+            }
+            temp += ((halfR * halfR) + (halfG * halfG) + (halfB * halfB))
+                    / halfW;
+
+            if (temp > max) {
+                max = temp;
+                cut[0] = i;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Cutting set1 in two, the upper part goes to set2
+     *
+     * @return false if set1 can't be cut
+     */
+    private static boolean cut(Moments m, Box set1, Box set2) {
+        long wholeR = volume(set1, m.mr);
+        long wholeG = volume(set1, m.mg);
+        long wholeB = volume(set1, m.mb);
+        long wholeW = volume(set1, m.wt);
+
+        int[] cutR = new int[1], cutG = new int[1], cutB = new int[1];
+        double maxR = maximize(m, set1, RED, set1.r0 + 1, set1.r1, cutR,
+                wholeR, wholeG, wholeB, wholeW);
+        double maxG = maximize(m, set1, GREEN, set1.g0 + 1, set1.g1, cutG,
+                wholeR, wholeG, wholeB, wholeW);
+        double maxB = maximize(m, set1, BLUE, set1.b0 + 1, set1.b1, cutB,
+                wholeR, wholeG, wholeB, wholeW);
+
+        int dir;
+        if ((maxR >= maxG) && (maxR >= maxB)) {
+            dir = RED;
+            if (cutR[0] < 0) {
+                return false;
+            }
+        } else if ((maxG >= maxR) && (maxG >= maxB)) {
+            dir = GREEN;
+        } else {
+            dir = BLUE;
+        }
+
+        set2.r1 = set1.r1;
+        set2.g1 = set1.g1;
+        set2.b1 = set1.b1;
+
+        switch (dir) {
+            case RED:
+                set2.r0 = set1.r1 = cutR[0];
+                set2.g0 = set1.g0;
+                set2.b0 = set1.b0;
+                break;
+            case GREEN:
+                set2.g0 = set1.g1 = cutG[0];
+                set2.r0 = set1.r0;
+                set2.b0 = set1.b0;
+                break;
+            default:
+                set2.b0 = set1.b1 = cutB[0];
+                set2.r0 = set1.r0;
+                set2.g0 = set1.g0;
+                break;
+        }
+
+        set1.vol = (set1.r1 - set1.r0) * (set1.g1 - set1.g0)
+                * (set1.b1 - set1.b0);
+        set2.vol = (set2.r1 - set2.r0) * (set2.g1 - set2.g0)
+                * (set2.b1 - set2.b0);
+        return true;
+    }
+}
@@ -0,0 +1,41 @@
+package jankovicsandras.imagetracer;
+
+/**
+ * Access to the Vector API kernels, Java 17 version. The kernels are only
+ * available if the jdk.incubator.vector module is added to the runtime
+ * (--add-modules jdk.incubator.vector), otherwise the scalar loops are used.
+ *
+ * @author sdejonge
+ */
+class Simd {
+
+    private static final PixelKernels KERNELS = load();
+
+    private static PixelKernels load() {
+        try {
+            return new VectorKernels();
+        } catch (LinkageError e) {
+            // jdk.incubator.vector is not in the module graph
+            return null;
+        }
+    }
+
+    /**
+     * The kernels, or null if they are not available on this JVM
+     *
+     * @return
+     */
+    static PixelKernels kernels() {
+        return KERNELS;
+    }
+
+    /**
+     * The kernels if they are enabled in options and available
+     *
+     * @param options
+     * @return
+     */
+    static PixelKernels kernels(Options options) {
+        return options.isSimd() ? kernels() : null;
+    }
+}
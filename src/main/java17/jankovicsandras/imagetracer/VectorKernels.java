@@ -0,0 +1,93 @@
+package jankovicsandras.imagetracer;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API kernels. The lanes are pixels: every lane runs the same
+ * operations in the same order as the scalar loop does for one pixel, so the
+ * results are identical.
+ *
+ * @author sdejonge
+ */
+class VectorKernels implements PixelKernels {
+
+    private static final VectorSpecies<Integer> INTS =
+            IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void nearest(int[] pixels, int offset, int length, int[][] pal,
+            int[] out) {
+        int i = 0;
+        for (int upper = INTS.loopBound(length); i < upper;
+                i += INTS.length()) {
+            IntVector pixel = IntVector.fromArray(INTS, pixels, offset + i);
+            IntVector r = pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector g = pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector b = pixel.and(0xFF);
+            IntVector a = pixel.lanewise(VectorOperators.LSHR, 24);
+
+            IntVector cdl = IntVector.broadcast(INTS, 256 + 256 + 256 + 256);
+            IntVector ci = IntVector.zero(INTS);
+            for (int k = 0; k < pal.length; k++) {
+                IntVector cd = r.sub(pal[k][0]).abs()
+                        .add(g.sub(pal[k][1]).abs())
+                        .add(b.sub(pal[k][2]).abs())
+                        .add(a.sub(pal[k][3]).abs().mul(4));
+
+                // Remember this color in the lanes where it is the closest yet
+                VectorMask<Integer> closer = cd.lt(cdl);
+                cdl = cdl.blend(cd, closer);
+                ci = ci.blend(k, closer);
+            }
+            ci.intoArray(out, i);
+        }
+        for (; i < length; i++) {
+            out[i] = ColorQuantizationTask.nearest(pal, pixels[offset + i]);
+        }
+    }
+
+    @Override
+    public void weightedSum(int[] pixels, int offset, int stride,
+            int[] weights, int length, int[][] acc) {
+        int i = 0;
+        for (int upper = INTS.loopBound(length); i < upper;
+                i += INTS.length()) {
+            IntVector r = IntVector.zero(INTS);
+            IntVector g = IntVector.zero(INTS);
+            IntVector b = IntVector.zero(INTS);
+            IntVector a = IntVector.zero(INTS);
+            for (int k = 0; k < weights.length; k++) {
+                IntVector pixel = IntVector.fromArray(INTS, pixels,
+                        offset + i + (k * stride));
+                r = r.add(pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF)
+                        .mul(weights[k]));
+                g = g.add(pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF)
+                        .mul(weights[k]));
+                b = b.add(pixel.and(0xFF).mul(weights[k]));
+                a = a.add(pixel.lanewise(VectorOperators.LSHR, 24)
+                        .mul(weights[k]));
+            }
+            r.intoArray(acc[0], i);
+            g.intoArray(acc[1], i);
+            b.intoArray(acc[2], i);
+            a.intoArray(acc[3], i);
+        }
+        for (; i < length; i++) {
+            int r = 0, g = 0, b = 0, a = 0;
+            for (int k = 0; k < weights.length; k++) {
+                int pixel = pixels[offset + i + (k * stride)];
+                r += ((pixel >>> 16) & 0xFF) * weights[k];
+                g += ((pixel >>> 8) & 0xFF) * weights[k];
+                b += (pixel & 0xFF) * weights[k];
+                a += (pixel >>> 24) * weights[k];
+            }
+            acc[0][i] = r;
+            acc[1][i] = g;
+            acc[2][i] = b;
+            acc[3][i] = a;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author sdejonge
+ */
+public class ImageLoaderTest {
+
+    private static final File SMILEY = new File("src/test/images/smiley.png");
+
+    @Test
+    public void streamsAreCachedInMemory() throws IOException {
+        boolean useCache = ImageIO.getUseCache();
+        ImageIO.setUseCache(true);
+        try (InputStream stream = new ByteArrayInputStream(
+                Files.readAllBytes(SMILEY.toPath()));
+             ImageInputStream iis = ImageLoader.openStream(stream)) {
+            assertTrue(iis instanceof MemoryCacheImageInputStream);
+        } finally {
+            ImageIO.setUseCache(useCache);
+        }
+    }
+
+    @Test
+    public void streamDecodesLikeFile() throws IOException {
+        Options options = new Options();
+        ImageData fromFile = ImageLoader.loadImageData(SMILEY, options);
+        ImageData fromStream;
+        try (InputStream stream = new ByteArrayInputStream(
+                Files.readAllBytes(SMILEY.toPath()))) {
+            fromStream = ImageLoader.loadImageData(stream, options);
+        }
+        assertEquals(fromFile.width, fromStream.width);
+        assertEquals(fromFile.height, fromStream.height);
+        for (int i = 0; i < (fromFile.width * fromFile.height); i++) {
+            assertEquals(fromFile.argb(i), fromStream.argb(i));
+        }
+    }
+}
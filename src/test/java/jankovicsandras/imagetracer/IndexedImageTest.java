@@ -0,0 +1,57 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author sdejonge
+ */
+public class IndexedImageTest {
+
+    @Test
+    public void bytesUpTo255Colors() {
+        IndexedImage image = image(0xFF);
+        assertNotNull(image.indexes);
+        assertNull(image.wideIndexes);
+        assertLastIndexAndBoundary(image);
+    }
+
+    @Test
+    public void shortsFrom256Colors() {
+        IndexedImage image = image(0x100);
+        assertNull(image.indexes);
+        assertNotNull(image.wideIndexes);
+        assertLastIndexAndBoundary(image);
+    }
+
+    @Test
+    public void shortsUpTo65535Colors() {
+        IndexedImage image = image(0xFFFF);
+        assertNull(image.indexes);
+        assertNotNull(image.wideIndexes);
+        assertLastIndexAndBoundary(image);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noMoreThan65535Colors() {
+        image(0x10000);
+    }
+
+    private static IndexedImage image(int colors) {
+        return new IndexedImage(2, 2, new byte[colors][4]);
+    }
+
+    private static void assertLastIndexAndBoundary(IndexedImage image) {
+        int idx = image.stride() + 1;
+        int last = image.palette.length - 1;
+        image.set(idx, last);
+        assertEquals(last, image.get(idx));
+        assertEquals(0, image.get(idx + 1));
+        assertEquals(-1, image.get(0));
+        assertEquals(-1, image.get(idx - 1));
+    }
+}
@@ -0,0 +1,76 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author sdejonge
+ */
+public class MappedRasterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mapsPpm() throws IOException {
+        File file = raster("a.ppm", "P6\n# comment\n2 1\n255\n",
+                1, 2, 3, 4, 5, 6);
+        ImageData imgd = MappedRaster.map(file, 0);
+        assertEquals(2, imgd.width);
+        assertEquals(1, imgd.height);
+        assertEquals(0xFF010203, imgd.argb(0));
+        assertEquals(0xFF040506, imgd.argb(1));
+    }
+
+    @Test
+    public void mapsPam() throws IOException {
+        File file = raster("a.pam", "P7\nWIDTH 1\nHEIGHT 1\nDEPTH 4\n"
+                + "MAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n", 1, 2, 3, 4);
+        assertEquals(0x04010203, MappedRaster.map(file, 0).argb(0));
+    }
+
+    @Test
+    public void rejectsMalformedHeaders() throws IOException {
+        assertMalformed(raster("empty.ppm", ""));
+        assertMalformed(raster("short.ppm", "P"));
+        assertMalformed(raster("magic.ppm", "P6"));
+        assertMalformed(raster("truncated.ppm", "P6\n2 1\n25"));
+        assertMalformed(raster("comment.ppm", "P6\n# no end"));
+        assertMalformed(raster("garbage.ppm", "P6\nab 1\n255\n"));
+        assertMalformed(raster("overflow.ppm", "P6\n99999999999 1\n255\n"));
+        assertMalformed(raster("pam.pam", "P7\nWIDTH\nENDHDR\n"));
+        assertMalformed(raster("nodata.ppm", "P6\n2 1\n255\n", 1, 2, 3));
+    }
+
+    private File raster(String name, String header, int... samples)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(header.getBytes(StandardCharsets.US_ASCII));
+        for (int sample : samples) {
+            bytes.write(sample);
+        }
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), bytes.toByteArray());
+        return file;
+    }
+
+    private static void assertMalformed(File file) {
+        try {
+            MappedRaster.map(file, 0);
+            fail(file.getName());
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
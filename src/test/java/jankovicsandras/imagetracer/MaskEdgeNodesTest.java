@@ -0,0 +1,68 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author sdejonge
+ */
+public class MaskEdgeNodesTest {
+
+    /**
+     * The paths scanned from the bit mask of random bilevel images, which
+     * span several mask words and have many saddle nodes, are the paths
+     * of the layers of the same image.
+     */
+    @Test
+    public void pathsMatchLayers() {
+        Random random = new Random(1);
+        for (int t = 0; t < 100; t++) {
+            int width = 1 + random.nextInt(150);
+            int height = 1 + random.nextInt(40);
+            double black = random.nextDouble();
+            int[] pixels = new int[width * height];
+            int[][] array = new int[height + 2][width + 2];
+            for (int[] row : array) {
+                Arrays.fill(row, -1);
+            }
+            for (int i = 0; i < pixels.length; i++) {
+                boolean isBlack = random.nextDouble() < black;
+                pixels[i] = isBlack ? 0xFF000000 : 0xFFFFFFFF;
+                array[(i / width) + 1][(i % width) + 1] = isBlack ? 1 : 0;
+            }
+            Options options = new Options();
+            options.setBilevel(true);
+            options.setBilevelThreshold(128);
+            BilevelImage bilevel = BilevelImage.of(
+                    new ImageData(width, height, pixels), options);
+            List<PackedPaths> layers = VectorizingUtils.batchpathscan(
+                    VectorizingUtils.layering(
+                            new IndexedImage(array, bilevel.palette)), 0);
+            assertEquals(width + "x" + height, toString(layers),
+                    toString(VectorizingUtils.batchpathscan(bilevel, 0)));
+        }
+    }
+
+    private static String toString(List<PackedPaths> layers) {
+        StringBuilder sb = new StringBuilder();
+        for (PackedPaths paths : layers) {
+            for (int p = 0; p < paths.size(); p++) {
+                int end = paths.start(p) + paths.length(p);
+                for (int n = paths.start(p); n < end; n++) {
+                    sb.append(paths.x(n)).append(',').append(paths.y(n))
+                            .append(',').append(paths.code(n)).append(' ');
+                }
+                sb.append('\n');
+            }
+            sb.append("--\n");
+        }
+        return sb.toString();
+    }
+}
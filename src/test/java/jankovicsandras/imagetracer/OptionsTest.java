@@ -0,0 +1,22 @@
+package jankovicsandras.imagetracer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author sdejonge
+ */
+public class OptionsTest {
+
+    @Test
+    public void copyDoesNotSharePalette() {
+        Options options = new Options();
+        options.setPalette(new byte[][]{{0, 0, 0, 127}, {127, 127, 127, 127}});
+        Options copy = new Options(options);
+        options.palette()[0][0] = 5;
+        options.setPalette(null);
+        assertEquals(2, copy.palette().length);
+        assertEquals(0, copy.palette()[0][0]);
+    }
+}
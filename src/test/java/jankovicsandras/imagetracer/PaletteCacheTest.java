@@ -0,0 +1,69 @@
+package jankovicsandras.imagetracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author sdejonge
+ */
+public class PaletteCacheTest {
+
+    private static final byte[][] PALETTE = {{0, 0, 0, 127}};
+
+    @After
+    public void clear() {
+        PaletteCache.clear();
+    }
+
+    @Test
+    public void generatesOncePerGroup() throws Exception {
+        AtomicInteger generated = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[][]>> palettes = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                palettes.add(executor.submit(() -> {
+                    start.await();
+                    return PaletteCache.get("group", () -> {
+                        generated.incrementAndGet();
+                        return PALETTE;
+                    });
+                }));
+            }
+            start.countDown();
+            for (Future<byte[][]> palette : palettes) {
+                assertSame(PALETTE, palette.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, generated.get());
+    }
+
+    @Test
+    public void failedGenerationIsRetried() {
+        try {
+            PaletteCache.get("group", () -> {
+                throw new IllegalStateException("no palette");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertSame(PALETTE, PaletteCache.get("group", () -> PALETTE));
+    }
+}
@@ -0,0 +1,56 @@
+package jankovicsandras.imagetracer;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author sdejonge
+ */
+public class QuantizeTest {
+
+    private static final int SIZE = 512;
+    // a tree of depth 8, which the random colors fill past MAX_NODES, so it
+    // is pruned during the classification
+    private static final int COLORS = 16384;
+
+    // the colormap of the original int[x][y] version for random(1): its
+    // length and hash code
+    private static final int LENGTH = 13371;
+    private static final int HASH = 895190995;
+
+    @Test
+    public void colormapIsPinned() {
+        int[] colormap = Quantize.quantizeImage(random(false), COLORS);
+        assertEquals(LENGTH, colormap.length);
+        assertEquals(HASH, Arrays.hashCode(colormap));
+    }
+
+    @Test
+    public void colormapDoesNotDependOnPixelOrder() {
+        int[] colormap = Quantize.quantizeImage(random(true), COLORS);
+        assertEquals(LENGTH, colormap.length);
+        assertEquals(HASH, Arrays.hashCode(colormap));
+    }
+
+    /**
+     * @param transposed the pixels of random(1) column by column instead
+     *                   of row by row
+     * @return
+     */
+    private static ImageData random(boolean transposed) {
+        Random random = new Random(1);
+        int[] pixels = new int[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int idx = transposed ? (x * SIZE) + y : (y * SIZE) + x;
+                pixels[idx] = random.nextInt() | 0xFF000000;
+            }
+        }
+        return new ImageData(SIZE, SIZE, pixels);
+    }
+}